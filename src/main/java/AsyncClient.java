@@ -1,51 +1,119 @@
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
 import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.Policies;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
 import com.datastax.driver.core.querybuilder.Insert;
+import com.google.common.util.concurrent.ListenableFuture;
 import generators.*;
+import org.HdrHistogram.Histogram;
 import misc.ByteIterator;
-import misc.RandomByteIterator;
+import misc.Pacer;
+import misc.ReplayClock;
+import misc.WTinyLfuCache;
 import org.apache.commons.cli.*;
 
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.datastax.driver.core.querybuilder.Select;
 
-import misc.Utils;
-
 public class AsyncClient {
 
-    //Hardcoded values that should be adjusted based on cluster setup and underlying hardware
+    static final String MULTIGET_FIELD = "field0"; //constant projection of the multigets
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    //Hardcoded values that should be adjusted based on cluster setup and underlying hardware.
+    //Only used when no calibrated capacity is available for the scenario (see -calibrate)
     double MEMORY_READ_SATURATION_INTERARRIVAL=300; //interarrival required to saturate system for memory reads
     double DISK_READ_SATURATION_INTERARRIVAL=100; //interarrival required to saturate system for disk reads
+    static final int BATCH_SIZE_SAMPLE = 10000; //multigets drawn to measure the mean batch size
 
     int totalOps;
     int utilization;
-    int interarrival; //interarrival time in Microseconds
+    double interarrival; //interarrival time in microseconds (fractional values are honoured), 0 for unpaced writes
+    double writeRate; //target write rate in ops/sec, 0 to write as fast as possible
     int ceilOps; //total number of rows
     Cluster cluster;
     Session session;
     CustomPercentileTracker tracker;
     BatchPercentileTracker batchTracker;
     boolean isRead; //workload is read-only
-    FileGenerator filegen;
+    TraceReader traceReader; //null for synthetic workloads
+    PrefetchingTraceReader prefetcher; //reads traceReader ahead of the senders, null if disabled
     IntegerGenerator bszGenerator;
     IntegerGenerator skwGenerator;
     IntegerGenerator valueGenerator;
-    IntegerGenerator arrivalGenerator;
+    String bszDist;
+    String skewDist;
+    String valueDist;
+    String arrivalDist;
+    double[] arrivalParams;
+    int bszParam;
+    int skwParam;
+    int valueParam;
+    int senderThreads; //number of threads generating and issuing requests
+    int[] concurrencyLevels; //closed-loop concurrency levels to measure, null for open-loop runs
+    String expScenario;
+    boolean isCalibration; //ramp offered load to find and persist the saturation point
+    String calibrationFile;
+    String calibrationWorkload; //batch size distribution or trace the calibrated capacities are stored for
+    double calibrationStartRate; //first offered rate of the calibration ramp, in multigets per second
+    int calibrationStepSeconds;
     String hostIP;
     boolean isTrace; //workload is generated using a trace file
+    double replaySpeedup; //replay the trace's recorded gaps compressed by this factor, 0 to use the arrival process
+    ReplayClock replayClock;
+    RunSchedule schedule; //phased run schedule, null to measure the whole run
+    long durationNanos; //length of time-bounded runs, 0 to run for totalOps operations
+    long graceNanos; //how long to wait for in-flight requests after the deadline of a time-bounded run
+    boolean bounded; //whether the run stops issuing operations at stopNanos
+    long stopNanos; //no operation intended to start at or after this time is issued
+    CompletionTracker completions; //outcome of the requests issued by the current run
+    PreparedMultiGets.Mode preparedMode; //null to build multigets with QueryBuilder
+    PreparedMultiGets preparedMultiGets;
+    ScatterGatherMultiGet.Mode scatterMode; //null to send each multiget to a single coordinator
+    ScatterGatherMultiGet scatterGather;
+    MultiGetScheduler.Policy schedPolicy; //null to hand multigets straight to the session
+    int schedWindow; //max scheduled multigets in flight per coordinator
+    int schedQueue; //max scheduled multigets queued per coordinator, further ones are rejected
+    long[] schedDeadline; //EDF deadline: base and per-key budget, in nanoseconds
+    MultiGetScheduler scheduler;
+    LatencyRankingPolicy rankingPolicy; //null to use the driver's default load balancing policy
+    double[] hedgeParams; //hedging delay percentile and budget (fraction of multigets), null to disable hedging
+    HedgedMultiGet hedger;
+    boolean isCoalescing; //multigets share the reads of keys already in flight
+    CoalescingMultiGet coalescer;
+    String cacheCapacity; //client cache capacity in entries, or in bytes with a KB/MB/GB suffix; null to disable
+    long cacheTtlNanos; //0 for no expiration
+    CachingMultiGet cache;
+    KeyTable keyTable; //key names and their serialized form, shared by all threads; null for writes
+    int keyTableLimit; //max number of keys precomputed in the key table
+    int chunkKeys; //max keys per query when chunking multigets, 0 to disable chunking
+    ChunkedMultiGet chunker;
+    int loadWindow; //max inserts in flight when loading through BulkWriter, 0 to use the paced senders
+    int loadShards; //number of key ranges the load is split into
+    File checkpointFile; //progress of the load, null to disable checkpoints
     boolean isDebug = false;
     int seed = 46;
 
@@ -53,12 +121,20 @@ public class AsyncClient {
         AsyncClient client = new AsyncClient();
         CommandLine commandLine = client.parseArgs(args);
         System.out.println(commandLine.getOptions());
-        client.init(commandLine);
+        try
+        {
+            client.init(commandLine);
+        }
+        catch (IllegalArgumentException exception)
+        {
+            System.out.println("Invalid options: " + exception.getMessage());
+            System.exit(1);
+        }
         client.setupCluster();
         client.runWorkload();
     }
 
-    private void init(CommandLine cmd)
+    private void init(CommandLine cmd) throws IOException
     {
         System.out.println(cmd);
         isDebug = cmd.hasOption("debug");
@@ -67,57 +143,289 @@ public class AsyncClient {
         totalOps = Integer.parseInt(cmd.getOptionValue("ops", "10000000"));
         utilization = Integer.parseInt(cmd.getOptionValue("util", "75"));
         isTrace = cmd.getOptionValue("workload", "trace").equals("trace");
-        filegen = new FileGenerator(cmd.getOptionValue("trc",
-                    "/Users/reda/git/cicero/trace-processing/third_simulatorTrace"));
-
-        String bszDist = cmd.getOptionValue("bsz", "normal");
-        String skewDist = cmd.getOptionValue("skw", "uniform");
-        String valueDist = cmd.getOptionValue("value", "constant");
-        String expScenario = cmd.getOptionValue("exp", "memory");
-
-        int bszParam = Integer.parseInt(cmd.getOptionValue("bszp", "10"));
-        int skwParam = Integer.parseInt(cmd.getOptionValue("skwp", "2"));
-        int valueParam = Integer.parseInt(cmd.getOptionValue("valuep", "1000"));
-
-        if(bszDist.equals("normal"))
-            bszGenerator = new NormalGenerator(bszParam, 75);
-        else if(bszDist.equals("zipfian"))
-            bszGenerator = new ZipfianGenerator(1, 5000, bszParam); //How do we set upper/lower limits?
-        else if(bszDist.equals("constant"))
-            bszGenerator = new ConstantGenerator(bszParam);
+        replaySpeedup = isTrace ? Double.parseDouble(cmd.getOptionValue("replay", "0")) : 0;
+        durationNanos = cmd.hasOption("duration") ? parseDuration(cmd.getOptionValue("duration")) : 0;
+        graceNanos = parseDuration(cmd.getOptionValue("grace", "10s"));
+        writeRate = Double.parseDouble(cmd.getOptionValue("wrate", "0"));
+        loadWindow = Integer.parseInt(cmd.getOptionValue("window", "0"));
+        checkpointFile = cmd.hasOption("checkpoint") ? new File(cmd.getOptionValue("checkpoint")) : null;
+        if(loadWindow <= 0 && (cmd.hasOption("checkpoint") || cmd.hasOption("shards")))
+            throw new IllegalArgumentException("-checkpoint and -shards only apply to bulk loads, which need -window");
+        String stmtMode = cmd.getOptionValue("stmt", "builder");
+        if(cmd.hasOption("scatter"))
+            scatterMode = ScatterGatherMultiGet.Mode.valueOf(cmd.getOptionValue("scatter").toUpperCase());
+        if(cmd.getOptionValue("lbp", "default").equals("latency"))
+            rankingPolicy = new LatencyRankingPolicy(DCAwareRoundRobinPolicy.builder().build());
+        isCoalescing = cmd.hasOption("coalesce");
+        cacheCapacity = cmd.getOptionValue("cache");
+        chunkKeys = Integer.parseInt(cmd.getOptionValue("chunk", "0"));
+        cacheTtlNanos = cmd.hasOption("cachettl") ? parseDuration(cmd.getOptionValue("cachettl")) : 0;
+        if(cmd.hasOption("hedge"))
+        {
+            String[] hedge = cmd.getOptionValue("hedge").split(",");
+            hedgeParams = new double[] {Double.parseDouble(hedge[0].trim()),
+                    hedge.length > 1 ? Double.parseDouble(hedge[1].trim())/100.0 : 0.05};
+        }
+        if(cmd.hasOption("sched"))
+            schedPolicy = MultiGetScheduler.Policy.valueOf(cmd.getOptionValue("sched").toUpperCase());
+        schedWindow = Integer.parseInt(cmd.getOptionValue("schedwindow", "32"));
+        schedQueue = Integer.parseInt(cmd.getOptionValue("schedqueue", "1024"));
+        if(schedQueue <= 0)
+            throw new IllegalArgumentException("-schedqueue must be positive");
+        String[] deadline = cmd.getOptionValue("deadline", "1000,100").split(",");
+        schedDeadline = new long[] {MICROSECONDS.toNanos(Long.parseLong(deadline[0].trim())),
+                MICROSECONDS.toNanos(Long.parseLong(deadline[1].trim()))};
+        if(stmtMode.equals("prepared"))
+            preparedMode = PreparedMultiGets.Mode.LIST;
+        else if(stmtMode.equals("arity"))
+            preparedMode = PreparedMultiGets.Mode.ARITY;
+        if(rankingPolicy != null && schedPolicy != null)
+            throw new IllegalArgumentException("-lbp latency cannot be combined with -sched, which routes each "
+                    + "multiget to the replica it was queued for");
+        if(cmd.hasOption("rampfrom") && !cmd.hasOption("phases"))
+            throw new IllegalArgumentException("-rampfrom only applies to runs split into -phases");
+        if(cmd.hasOption("phases"))
+            schedule = RunSchedule.parse(cmd.getOptionValue("phases"),
+                    Double.parseDouble(cmd.getOptionValue("rampfrom", "10"))/100.0);
+        senderThreads = Integer.parseInt(cmd.getOptionValue("threads", "1"));
+        loadShards = Integer.parseInt(cmd.getOptionValue("shards", Integer.toString(senderThreads)));
+        if(cmd.hasOption("concurrency"))
+        {
+            String[] levels = cmd.getOptionValue("concurrency").split(",");
+            concurrencyLevels = new int[levels.length];
+            for(int i=0; i<levels.length; i++)
+                concurrencyLevels[i] = Integer.parseInt(levels[i].trim());
+        }
+        String traceFile = cmd.getOptionValue("trc", "/Users/reda/git/cicero/trace-processing/third_simulatorTrace");
+        if(isTrace)
+        {
+            traceReader = openTrace(traceFile);
+            int prefetch = Integer.parseInt(cmd.getOptionValue("prefetch", "4096"));
+            if(prefetch > 0)
+                traceReader = prefetcher = new PrefetchingTraceReader(traceReader, prefetch);
+        }
 
+        bszDist = cmd.getOptionValue("bsz", "normal");
+        skewDist = cmd.getOptionValue("skw", "uniform");
+        valueDist = cmd.getOptionValue("value", "constant");
+        arrivalDist = cmd.getOptionValue("arrival", "constant");
+        String[] arrivalValues = cmd.getOptionValue("arrivalp",
+                arrivalDist.equals("onoff") ? "50000,50000" : "10,0.1,10000").split(",");
+        arrivalParams = new double[arrivalValues.length];
+        for(int i=0; i<arrivalValues.length; i++)
+            arrivalParams[i] = Double.parseDouble(arrivalValues[i].trim());
+        expScenario = cmd.getOptionValue("exp", "memory");
+        isCalibration = cmd.hasOption("calibrate");
+        calibrationFile = cmd.getOptionValue("calfile", "calibration.properties");
+        calibrationStartRate = Double.parseDouble(cmd.getOptionValue("calstart", "1000"));
+        calibrationStepSeconds = Integer.parseInt(cmd.getOptionValue("calstep", "10"));
+        checkMultiGetModes();
+
+        bszParam = Integer.parseInt(cmd.getOptionValue("bszp", "10"));
+        skwParam = Integer.parseInt(cmd.getOptionValue("skwp", "2"));
+        valueParam = Integer.parseInt(cmd.getOptionValue("valuep", "1000"));
+
+        bszGenerator = createBatchSizeGenerator();
+        //Capacities only carry over to runs whose multigets have the same size
+        calibrationWorkload = isTrace ? "trace-" + new File(traceFile).getName() : bszDist + "-" + bszParam;
+
+        double capacity = Calibrator.loadCapacity(calibrationFile, expScenario, calibrationWorkload);
         if(expScenario.equals("memory"))
         {
             //TODO Remove hardcoded values
             ceilOps = 100000; //row count is 100k
-            double compensation = isTrace ? 8 : bszGenerator.mean();
-            if(isRead)
-                interarrival = (int)(MEMORY_READ_SATURATION_INTERARRIVAL / (((double)utilization)/100.0) / compensation);
-            else
-                interarrival = 800;
+            if(isRead && capacity <= 0)
+                interarrival = MEMORY_READ_SATURATION_INTERARRIVAL / (((double)utilization)/100.0)
+                        / measureBatchSize(traceFile);
+            else if(!isRead)
+                interarrival = writeInterarrival();
         }
         else
         {
             //TODO Remove hardcoded values
             ceilOps = 250000000; //row count is 250m
-            double compensation = isTrace ? 8 : bszGenerator.mean();
-            if(isRead)
-                interarrival = (int) (DISK_READ_SATURATION_INTERARRIVAL /(((double)utilization)/100.0) / compensation);
-            else
-                interarrival = 800;
+            if(isRead && capacity <= 0)
+                interarrival = DISK_READ_SATURATION_INTERARRIVAL /(((double)utilization)/100.0)
+                        / measureBatchSize(traceFile);
+            else if(!isRead)
+                interarrival = writeInterarrival();
+        }
+
+        keyTableLimit = Integer.parseInt(cmd.getOptionValue("keytable", "1000000"));
+        if(isRead || isCalibration)
+        {
+            //Only multigets look keys up, inserts format their single key
+            final long st_keys = System.nanoTime();
+            keyTable = new KeyTable(ceilOps, keyTableLimit);
+            System.out.println("Key table: " + (keyTable.isDense() ? "dense" : "compact, "
+                    + keyTable.getOffHeapBytes()/(1024*1024) + " MB off-heap") + " for " + ceilOps
+                    + " rows, built in " + (System.nanoTime() - st_keys)/1.0E6 + " ms");
+        }
+
+        if(isRead && capacity > 0)
+        {
+            interarrival = 1.0E6 / (capacity * (((double)utilization)/100.0));
+            System.out.println("Using calibrated capacity of " + capacity + " reqs/sec for the " + expScenario
+                    + " scenario and the " + calibrationWorkload + " workload");
+        }
+        else if(isRead && !isCalibration)
+            System.out.println("[WARNING] No calibrated capacity for the " + expScenario + " scenario and the "
+                    + calibrationWorkload + " workload, falling back to hardcoded saturation interarrivals");
+
+        skwGenerator = createSkewGenerator();
+        valueGenerator = createValueGenerator();
+    }
+
+    private static TraceReader openTrace(String traceFile) throws IOException
+    {
+        return BinaryTrace.isBinary(traceFile) ? new BinaryTraceReader(traceFile) : new MappedTraceReader(traceFile);
+    }
+
+    /**
+     * Returns the mean number of keys per multiget of the workload, measured on a sample of it: the nominal mean of
+     * the batch size distribution ignores the clamping of the values drawn, and traces have no nominal mean. Ids are
+     * not deduplicated, as the sample is taken before the key generators exist.
+     */
+    private double measureBatchSize(String traceFile) throws IOException
+    {
+        long keys = 0;
+        if(isTrace)
+        {
+            //A separate reader, so that the replay still starts at the beginning of the trace
+            TraceReader sample = openTrace(traceFile);
+            try
+            {
+                TraceRecord record = new TraceRecord(64);
+                for(int i=0; i<BATCH_SIZE_SAMPLE; i++)
+                {
+                    sample.next(record);
+                    keys += record.count();
+                }
+            }
+            finally
+            {
+                sample.close();
+            }
         }
+        else
+        {
+            IntegerGenerator sizes = createBatchSizeGenerator();
+            for(int i=0; i<BATCH_SIZE_SAMPLE; i++)
+                keys += Math.max(1, sizes.nextInt()); //as clamped by RequestGenerator
+        }
+        return (double) keys / BATCH_SIZE_SAMPLE;
+    }
+
+    /**
+     * Returns the interarrival of write workloads: writes are unpaced unless a write rate was requested.
+     */
+    private double writeInterarrival()
+    {
+        return writeRate > 0 ? 1.0E6 / writeRate : 0;
+    }
 
+    /**
+     * Creates a new batch size generator. Each sender thread gets its own instance.
+     */
+    private IntegerGenerator createBatchSizeGenerator()
+    {
+        if(bszDist.equals("normal"))
+            return new NormalGenerator(bszParam, 75);
+        else if(bszDist.equals("zipfian"))
+            return new ZipfianGenerator(1, 5000, bszParam); //How do we set upper/lower limits?
+        else if(bszDist.equals("constant"))
+            return new ConstantGenerator(bszParam);
+        return null;
+    }
+
+    /**
+     * Creates a new key skew generator. Each sender thread gets its own instance.
+     */
+    private IntegerGenerator createSkewGenerator()
+    {
         if(skewDist.equals("zipfian"))
-            skwGenerator = new ZipfianGenerator(ceilOps, skwParam);
+        {
+            if(skwGenerator == null)
+                return new ZipfianGenerator(ceilOps, skwParam);
+            //Reuse zeta from the first instance, computing it is slow for large row counts
+            return new ZipfianGenerator(0, ceilOps-1, skwParam, ((ZipfianGenerator)skwGenerator).getZetan());
+        }
         else if(skewDist.equals("uniform"))
-            skwGenerator = new UniformIntegerGenerator(1, ceilOps);
+            return new UniformIntegerGenerator(1, ceilOps);
+        return null;
+    }
 
+    /**
+     * Creates a new interarrival generator (in microseconds) with the given mean. Each sender thread gets its own
+     * instance; for the Poisson process, the superposition of the senders' arrivals is again Poisson with the
+     * aggregate rate.
+     */
+    private DoubleGenerator createArrivalGenerator(double meanInterarrival)
+    {
+        if(arrivalDist.equals("poisson"))
+            return new ExponentialGenerator(meanInterarrival);
+        else if(arrivalDist.equals("mmpp"))
+            return new MMPPGenerator(meanInterarrival, arrivalParams[0], arrivalParams[1], arrivalParams[2]);
+        else if(arrivalDist.equals("onoff"))
+            return new OnOffGenerator(meanInterarrival, arrivalParams[0], arrivalParams[1]);
+        return new ConstantDoubleGenerator(meanInterarrival);
+    }
+
+    /**
+     * Creates a request generator with its own set of generators, for use by a single thread.
+     */
+    RequestGenerator createRequestGenerator()
+    {
+        return new RequestGenerator(createBatchSizeGenerator(), createSkewGenerator(), createValueGenerator(),
+                traceReader, keyTable, preparedMultiGets);
+    }
+
+    /**
+     * Creates a new value size generator. Each sender thread gets its own instance.
+     */
+    private IntegerGenerator createValueGenerator()
+    {
         if(valueDist.equals("fbpareto"))
-            valueGenerator = new FBMemcacheGenerator();
+            return new FBMemcacheGenerator();
         else if(valueDist.equals("constant"))
-            valueGenerator = new ConstantGenerator(valueParam);
+            return new ConstantGenerator(valueParam);
+        return null;
+    }
 
-        arrivalGenerator = new ConstantGenerator(interarrival);
+    /**
+     * Each of these options replaces how reads are sent, and they do not compose: setupCluster would only apply the
+     * first one given. Closed-loop and calibration runs send plain multigets at their own pace, so neither these modes
+     * nor the options bounding and pacing open-loop runs apply to them.
+     */
+    private void checkMultiGetModes()
+    {
+        List<String> modes = new ArrayList<String>();
+        if(scatterMode != null)
+            modes.add("-scatter");
+        if(schedPolicy != null)
+            modes.add("-sched");
+        if(chunkKeys > 0)
+            modes.add("-chunk");
+        if(cacheCapacity != null)
+            modes.add("-cache");
+        if(isCoalescing)
+            modes.add("-coalesce");
+        if(hedgeParams != null)
+            modes.add("-hedge");
+        if(modes.size() > 1)
+            throw new IllegalArgumentException("Multiget modes cannot be combined, choose one of " + modes);
+        if(isCalibration || concurrencyLevels != null)
+        {
+            if(durationNanos > 0)
+                modes.add("-duration");
+            if(schedule != null)
+                modes.add("-phases");
+            if(replaySpeedup > 0)
+                modes.add("-replay");
+            if(!modes.isEmpty())
+                throw new IllegalArgumentException((isCalibration ? "-calibrate" : "-concurrency")
+                        + " cannot be combined with " + modes);
+        }
     }
 
     public void setupCluster() throws InterruptedException {
@@ -130,7 +438,18 @@ public class AsyncClient {
 
         final long st_setup = System.nanoTime();
 
-        cluster = Cluster.builder().addContactPoint(hostIP).withPoolingOptions(createPoolingOptions()).build();
+        Cluster.Builder builder = Cluster.builder().addContactPoint(hostIP).withPoolingOptions(createPoolingOptions());
+        LoadBalancingPolicy lbp = Policies.defaultLoadBalancingPolicy();
+        if(rankingPolicy != null)
+            lbp = rankingPolicy;
+        else if(schedPolicy != null)
+            //The scheduler queues multigets per replica, so the driver must send them to that replica
+            lbp = new TokenAwarePolicy(DCAwareRoundRobinPolicy.builder().build(), false);
+        if(hedgeParams != null)
+            //Hedges must go to another coordinator than the request they duplicate
+            lbp = new HedgeRoutingPolicy(lbp);
+        builder.withLoadBalancingPolicy(lbp);
+        cluster = builder.build();
 
         cluster.register(tracker);
         cluster.register(batchTracker);
@@ -164,6 +483,27 @@ public class AsyncClient {
 //        cluster.getConfiguration().getPoolingOptions().setMaxRequestsPerConnection(HostDistance.LOCAL, 5000);
 
         session = cluster.connect("ycsb");
+        if(rankingPolicy != null)
+            rankingPolicy.setSession(session);
+        if(preparedMode != null)
+            preparedMultiGets = new PreparedMultiGets(session, "usertable", "field0", preparedMode);
+        if(scatterMode != null)
+            scatterGather = new ScatterGatherMultiGet(session, "ycsb", "usertable", "field0", scatterMode,
+                    preparedMultiGets, keyTable, Arrays.<LatencyTracker>asList(tracker, batchTracker));
+        else if(schedPolicy != null)
+            scheduler = new MultiGetScheduler(session, "ycsb", keyTable, schedPolicy, schedWindow, schedQueue,
+                    schedDeadline[0], schedDeadline[1], Arrays.<LatencyTracker>asList(tracker, batchTracker));
+        else if(chunkKeys > 0)
+            chunker = new ChunkedMultiGet(session, "usertable", "field0", chunkKeys, preparedMultiGets,
+                    Arrays.<LatencyTracker>asList(tracker, batchTracker));
+        else if(cacheCapacity != null)
+            cache = createCache();
+        else if(isCoalescing)
+            coalescer = new CoalescingMultiGet(session, "usertable", "field0",
+                    Arrays.<LatencyTracker>asList(tracker, batchTracker));
+        else if(hedgeParams != null)
+            hedger = new HedgedMultiGet(session, hedgeParams[0], hedgeParams[1],
+                    Arrays.<LatencyTracker>asList(tracker, batchTracker));
 
         Metadata metadata = cluster.getMetadata();
         System.out.printf("Connected to cluster: %s\n", metadata.getClusterName());
@@ -192,80 +532,129 @@ public class AsyncClient {
     }
 
     public void runWorkload() throws InterruptedException, ExecutionException, IOException {
-        if(isRead)
-            readData();
-        else
-            writeData();
+        try
+        {
+            if(isCalibration)
+                calibrate();
+            else if(isRead && concurrencyLevels != null)
+                readClosedLoop();
+            else if(isRead)
+                readData();
+            else if(loadWindow > 0)
+                loadData();
+            else
+                writeData();
+        }
+        finally
+        {
+            //Stops the prefetching thread, if any, and releases the trace file
+            if(traceReader != null)
+                traceReader.close();
+        }
     }
 
-    public void readData() throws InterruptedException, ExecutionException, IOException {
-        final long st_trans = System.nanoTime();
-        double compensation = 0;
-        //List<ResultSetFuture> results = new ArrayList<ResultSetFuture>();
-        if(isTrace)
-            System.out.println("Generating workload from trace file: " + filegen.getFilename());
-        for(int i=0; i<totalOps; i++)
+    /**
+     * Ramps the offered read load until the cluster saturates and persists the capacity reached before the knee,
+     * so that later runs can size their interarrival from it.
+     */
+    public void calibrate() throws InterruptedException, ExecutionException, IOException
+    {
+        List<RequestGenerator> generators = new ArrayList<RequestGenerator>();
+        for(int i=0; i<senderThreads; i++)
+            generators.add(createRequestGenerator());
+
+        Calibrator calibrator = new Calibrator(session, generators, calibrationStepSeconds);
+        Calibrator.Step knee = calibrator.calibrate(calibrationStartRate);
+
+        session.close();
+        cluster.close();
+        if(knee == null)
         {
-            long st_asynccall = System.nanoTime();
+            System.out.println("[CALIBRATION] Saturated at the first step, retry with a lower -calstart");
+            return;
+        }
+        Calibrator.saveCapacity(calibrationFile, expScenario, calibrationWorkload, knee.getAchievedRate(),
+                knee.getAchievedKeyRate());
+        System.out.println("[CALIBRATION] Capacity: " + knee.getAchievedRate() + " reqs/sec ("
+                + knee.getAchievedKeyRate() + " keys/sec) for the " + calibrationWorkload + " workload, saved to "
+                + calibrationFile);
+        System.out.println("All done");
+    }
 
-            List<String> task = new ArrayList<String>();
+    /**
+     * Closed-loop read workload: for each concurrency level, that many logical clients issue multigets back-to-back
+     * (each waiting for its previous response) until totalOps operations completed.
+     */
+    public void readClosedLoop() throws InterruptedException
+    {
+        int maxConcurrency = 0;
+        for(int c : concurrencyLevels)
+            maxConcurrency = Math.max(maxConcurrency, c);
+        List<RequestGenerator> generators = new ArrayList<RequestGenerator>();
+        for(int i=0; i<maxConcurrency; i++)
+            generators.add(createRequestGenerator());
+        if(isTrace)
+            System.out.println("Generating workload from trace file: " + traceReader.getFilename());
+
+        ClosedLoopRunner runner = new ClosedLoopRunner(session, generators);
+        List<ClosedLoopRunner.Result> results = new ArrayList<ClosedLoopRunner.Result>();
+        for(int c : concurrencyLevels)
+        {
+            ClosedLoopRunner.Result result = runner.run(c, totalOps);
+            results.add(result);
+            System.out.println("[CLOSED-LOOP] Concurrency: " + c
+                    + ", Throughput: " + result.getThroughput() + " reqs/sec"
+                    + ", Median Latency (us): " + result.getLatencyAtPercentile(50)
+                    + ", 95th Percentile Latency (us): " + result.getLatencyAtPercentile(95)
+                    + ", 99th Percentile Latency (us): " + result.getLatencyAtPercentile(99)
+                    + ", Failures: " + result.failed);
+        }
 
-            if(isTrace) {
-                task = readMultiGetFromFile(filegen);
-                for (int j = 0; j < task.size(); j++) {
-                    long keyInt = Utils.hash(Integer.parseInt(task.get(j)));
-                    keyInt = keyInt % ceilOps;
+        session.close();
+        cluster.close();
 
-                    //int keyInt = Integer.parseInt(task.get(i));
-                    String kname = buildKeyName(keyInt);
-                    task.set(j, kname);
-                }
-            }
-            else
-            {
-                int batchSize = bszGenerator.nextInt();
-                if(batchSize <= 0)
-                    batchSize = 1;
-                for(int j=0; j<batchSize; j++)
-                {
-                    int k = skwGenerator.nextInt();
-                    task.add(buildKeyName(k));
-                }
+        String eol = System.getProperty("line.separator");
+        try (Writer writer = new FileWriter("closedLoopStats.csv")) {
+            writer.append("concurrency,throughput,p50,p95,p99,failures").append(eol);
+            for (ClosedLoopRunner.Result result : results) {
+                writer.append(Integer.toString(result.concurrency))
+                        .append(',').append(Double.toString(result.getThroughput()))
+                        .append(',').append(Long.toString(result.getLatencyAtPercentile(50)))
+                        .append(',').append(Long.toString(result.getLatencyAtPercentile(95)))
+                        .append(',').append(Long.toString(result.getLatencyAtPercentile(99)))
+                        .append(',').append(Long.toString(result.failed))
+                        .append(eol);
             }
-
-            Set<String> keys = new HashSet<String>(task);
-            Set<String> fields = new HashSet<String>();
-            fields.add("field0");
-            Statement stmt = generateMultiGet("usertable", keys, fields);
-            ResultSetFuture rsf = session.executeAsync(stmt);
-            long et_asynccall = System.nanoTime();
-
-            int delay = arrivalGenerator.nextInt();
-            MICROSECONDS.sleep(Math.max(delay-NANOSECONDS.toMicros(et_asynccall-st_asynccall),0));
-
-//            Futures.addCallback(rsf, new FutureCallback<ResultSet>() {
-//                @Override
-//                public void onSuccess(ResultSet resultSet) {
-//                    //System.out.println("Updating tracker");
-//                    //AsyncClient.this.incrementRequestsRecv();
-//                }
-//
-//                @Override
-//                public void onFailure(Throwable throwable) {
-//                    System.out.printf("Failed with: %s\n", throwable);
-//                }
-//            });
-            //results.add(rsf);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
         }
-        final long et_trans = System.nanoTime();
 
-        System.out.println("Completed " + totalOps + " operations in " + (et_trans - st_trans)/1.0E9 + " seconds");
+        System.out.println("All done");
+    }
 
-        while(!tracker.isRunComplete() && NANOSECONDS.toSeconds(System.nanoTime() - tracker.getLastUpdateTS()) < 10)
+    public void readData() throws InterruptedException, ExecutionException, IOException {
+        final long st_trans = System.nanoTime();
+        //List<ResultSetFuture> results = new ArrayList<ResultSetFuture>();
+        if(isTrace)
+            System.out.println("Generating workload from trace file: " + traceReader.getFilename()
+                    + (replaySpeedup > 0 ? " (replaying recorded gaps at " + replaySpeedup + "x)" : ""));
+        List<Sender> senders = runSenders(st_trans, durationNanos > 0 ? Integer.MAX_VALUE : totalOps);
+        final long et_trans = lastSenderEnd(senders);
+        final long issued = totalSent(senders);
+
+        System.out.println("Completed " + issued + " operations in " + (et_trans - st_trans)/1.0E9 + " seconds");
+        if(prefetcher != null)
         {
-            SECONDS.sleep(5);
+            System.out.println("[TRACE-PREFETCH] Capacity: " + prefetcher.getCapacity() + ", Average occupancy: "
+                    + prefetcher.getAverageOccupancy() + ", Consumer stalls: " + prefetcher.getStalls()
+                    + " (" + prefetcher.getStallMicros() + " us), Producer waits: " + prefetcher.getProducerWaits());
         }
 
+        if(durationNanos > 0)
+            completions.await(st_trans + durationNanos + graceNanos - System.nanoTime(), NANOSECONDS);
+        else
+            awaitCompletions(et_trans);
+
         //int notFoundCount = 0;
         //for(ResultSetFuture r: results) {
         //    if(r.get().all().size() == 0)
@@ -273,79 +662,115 @@ public class AsyncClient {
         //}
 
         System.out.println("Experiment completed in " + (System.nanoTime() - st_trans)/1.0E9 + " seconds");
-        System.out.println("[MULTIGET-SUCCESS] Count: " + tracker.getOpsCount());
-        if(!tracker.isRunComplete())
-            System.out.println("[MULTIGET-FAILURE] Count: " + (totalOps - tracker.getOpsCount()));
+        printCompletionStats("MULTIGET");
+        if(scatterGather != null)
+            System.out.println("[MULTIGET-SCATTER] Mode: " + scatterMode + ", Sub-queries per multiget: "
+                    + scatterGather.getAverageFanOut());
+        if(scheduler != null)
+            System.out.println("[MULTIGET-SCHED] Policy: " + schedPolicy + ", Window: " + schedWindow
+                    + ", Queue capacity: " + schedQueue
+                    + ", Average queueing delay (us): " + scheduler.getAverageQueueingMicros()
+                    + ", Rejected (queue full): " + scheduler.getRejected());
+        if(cache != null)
+        {
+            WTinyLfuCache<String, Row> c = cache.getCache();
+            System.out.println("[MULTIGET-CACHE] Capacity: " + cacheCapacity + ", Hits: " + c.getHits()
+                    + ", Misses: " + c.getMisses() + ", Hit rate: " + c.getHitRate() + ", Evictions: "
+                    + c.getEvictions() + ", Expirations: " + c.getExpirations());
+        }
+        if(coalescer != null)
+            System.out.println("[MULTIGET-COALESCE] Keys requested: " + coalescer.getRequestedKeys()
+                    + ", Keys sent: " + coalescer.getSentKeys() + ", Dedup ratio: " + coalescer.getDedupRatio()
+                    + ", Multigets without a query: " + coalescer.getCoalescedMultiGets());
+        if(hedger != null)
+        {
+            HedgedMultiGet.Stats hedgeStats = hedger.getTotalStats();
+            System.out.println("[MULTIGET-HEDGE] Percentile: " + hedgeParams[0] + ", Budget: " + hedgeParams[1]
+                    + ", Hedge rate: " + hedgeStats.getHedgeRate() + ", Win rate: " + hedgeStats.getWinRate());
+        }
+        if(rankingPolicy != null)
+        {
+            for(Host h : cluster.getMetadata().getAllHosts())
+                System.out.println("[LBP] Host: " + h + ", Routed: " + rankingPolicy.getRoutedCount(h)
+                        + ", Latency (us): " + rankingPolicy.getLatencyMicros(h));
+        }
 
         //if(notFoundCount>0)
         //    System.out.println("[WARNING] " + notFoundCount + " successful requests returned an empty response");
 
-        double latency10Perc = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 10);
-        double latency20Perc = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 20);
-        double latency30Perc = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 30);
-        double latency40Perc = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 40);
-        double latencyMedian = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 50);
-        double latency95Perc = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 95);
-        double latency99Perc = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 99);
+        Host host = cluster.getMetadata().getAllHosts().iterator().next();
+        int[] percentiles = {10, 20, 30, 40, 50, 95, 99};
+        double[] latencies = new double[percentiles.length];
+        double[] correctedLatencies = new double[percentiles.length];
+        for(int p=0; p<percentiles.length; p++)
+        {
+            if(schedule != null)
+            {
+                //Only the steady-state window is reported as the headline result
+                latencies[p] = tracker.getPhaseLatencyAtPercentile(RunSchedule.Phase.STEADY, false, percentiles[p]);
+                correctedLatencies[p] = tracker.getPhaseLatencyAtPercentile(RunSchedule.Phase.STEADY, true,
+                        percentiles[p]);
+            }
+            else
+            {
+                latencies[p] = tracker.getLatencyAtPercentile(host, null, null, percentiles[p]);
+                correctedLatencies[p] = tracker.getCorrectedLatencyAtPercentile(host, null, null, percentiles[p]);
+            }
+        }
 
         session.close();
         cluster.close();
-        System.out.println("[MULTIGET] 10th Percentile Latency (us): " + latency10Perc);
-        System.out.println("[MULTIGET] 20th Percentile Latency (us): " + latency20Perc);
-        System.out.println("[MULTIGET] 30th Percentile Latency (us): " + latency30Perc);
-        System.out.println("[MULTIGET] 40th Percentile Latency (us): " + latency40Perc);
-        System.out.println("[MULTIGET] 50th Percentile Latency (us): " + latencyMedian);
-        System.out.println("[MULTIGET] 95th Percentile Latency (us): " + latency95Perc);
-        System.out.println("[MULTIGET] 99th Percentile Latency (us): " + latency99Perc);
-        System.out.println("Throughput: " + tracker.getOpsCount()/NANOSECONDS.toSeconds(tracker.getLastUpdateTS()
-                            - st_trans) + " reqs/sec");
-        System.out.println("Sending rate: " + totalOps/NANOSECONDS.toSeconds(et_trans - st_trans) + " reqs/sec");
+        if(schedule != null)
+            printPhaseStats();
+        for(int p=0; p<percentiles.length; p++)
+            System.out.println("[MULTIGET] " + percentiles[p] + "th Percentile Latency (us): " + latencies[p]);
+        //Measured from the intended (paced) start time, so sender stalls are accounted for
+        for(int p=0; p<percentiles.length; p++)
+            System.out.println("[MULTIGET-CORRECTED] " + percentiles[p] + "th Percentile Latency (us): "
+                                + correctedLatencies[p]);
+        if(schedule != null)
+            System.out.println("Throughput: " + tracker.getPhaseOpsCount(RunSchedule.Phase.STEADY)
+                    / (schedule.getPhaseNanos(RunSchedule.Phase.STEADY)/1.0E9) + " reqs/sec (steady state)");
+        else
+            printThroughput(st_trans);
+        printSendingStats(senders, st_trans, et_trans);
 
         String eol = System.getProperty("line.separator");
         try (Writer writer = new FileWriter("batchStats.csv")) {
-            writer.append("size,latency").append(eol);
+            writer.append(hedger != null ? "size,latency,hedgeRate,winRate" : "size,latency").append(eol);
             for (Map.Entry<Object, Double> entry : batchTracker.getAllLatenciesAtPercentile(50).entrySet()) {
                 writer.append(entry.getKey().toString())
                         .append(',')
-                        .append(entry.getValue().toString())
-                        .append(eol);
+                        .append(entry.getValue().toString());
+                HedgedMultiGet.Stats hedgeStats = hedger != null ? hedger.getStats(entry.getKey()) : null;
+                if (hedgeStats != null)
+                    writer.append(',')
+                            .append(Double.toString(hedgeStats.getHedgeRate()))
+                            .append(',')
+                            .append(Double.toString(hedgeStats.getWinRate()));
+                writer.append(eol);
             }
         } catch (IOException ex) {
             ex.printStackTrace(System.err);
         }
+        if(chunker != null)
+            writeChunkStats();
 
         System.out.println("All done");
     }
 
-    public void writeData() throws InterruptedException
+    public void writeData() throws InterruptedException, ExecutionException
     {
         final long st_trans = System.nanoTime();
-        for(int i=0; i<ceilOps; i++)
-        {
-            long st_asynccall = System.nanoTime();
-            String kname = buildKeyName(i);
-            List<String> fields = new ArrayList<String>();
-            fields.add("field0");
-            HashMap<String, ByteIterator> values = buildValues(fields);
-            Statement stmt = generateInsert("usertable", kname, values);
-            ResultSetFuture rsf = session.executeAsync(stmt);
-            long et_asynccall = System.nanoTime();
-
-            int delay = arrivalGenerator.nextInt();
-            MICROSECONDS.sleep(Math.min(delay-NANOSECONDS.toMicros(et_asynccall-st_asynccall),0));
-        }
-        final long et_trans = System.nanoTime();
+        List<Sender> senders = runSenders(st_trans, ceilOps);
+        final long et_trans = lastSenderEnd(senders);
         double duration = (et_trans - st_trans)/1.0E9;
-        System.out.println("Completed " + ceilOps + " operations in " + duration + " seconds");
+        final long issued = totalSent(senders);
+        System.out.println("Completed " + issued + " operations in " + duration + " seconds");
 
-        while(!tracker.isRunComplete() && NANOSECONDS.toSeconds(System.nanoTime() - tracker.getLastUpdateTS()) < 10)
-        {
-            SECONDS.sleep(5);
-        }
+        awaitCompletions(et_trans);
 
-        System.out.println("[WRITE-SUCCESS] Count: " + tracker.getOpsCount());
-        if(!tracker.isRunComplete())
-            System.out.println("[WRITE-FAILURE] Count: " + (ceilOps - tracker.getOpsCount()));
+        printCompletionStats("WRITE");
 
         double latencyMedian = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 50);
         double latency95Perc = tracker.getLatencyAtPercentile(cluster.getMetadata().getAllHosts().iterator().next(), null, null, 95);
@@ -356,12 +781,362 @@ public class AsyncClient {
         System.out.println("[WRITE] Median Latency (us): " + latencyMedian);
         System.out.println("[WRITE] 95th Percentile Latency (us): " + latency95Perc);
         System.out.println("[WRITE] 99th Percentile Latency (us): " + latency99Perc);
-        System.out.println("Throughput: " + tracker.getOpsCount()/NANOSECONDS.toSeconds(tracker.getLastUpdateTS()
-                - st_trans) + " reqs/sec");
-        System.out.println("Sending rate: " + ceilOps/NANOSECONDS.toSeconds(et_trans - st_trans) + " reqs/sec");
+        printThroughput(st_trans);
+        printSendingStats(senders, st_trans, et_trans);
         System.out.println("All done");
     }
-    
+
+    /**
+     * Populates the table with ceilOps rows as fast as the cluster accepts them, through a prepared insert and with at
+     * most loadWindow writes in flight. The key range is split into loadShards shards drained by senderThreads threads;
+     * when a checkpoint file is given, the load resumes from it and keeps it up to date.
+     */
+    public void loadData() throws InterruptedException, ExecutionException, IOException
+    {
+        List<RequestGenerator> generators = new ArrayList<RequestGenerator>();
+        for(int i=0; i<senderThreads; i++)
+            generators.add(createRequestGenerator());
+        List<RangeLoader.Shard> shards = checkpointFile != null && checkpointFile.exists()
+                ? RangeLoader.readCheckpoint(checkpointFile)
+                : RangeLoader.split(ceilOps, loadShards);
+
+        completions = new CompletionTracker();
+        BulkWriter writer = new BulkWriter(session, "usertable", "field0", loadWindow);
+        RangeLoader loader = new RangeLoader(writer, completions, shards, checkpointFile);
+        if(loader.getResumedRows() > 0)
+            System.out.println("Resuming from " + checkpointFile + ": " + loader.getResumedRows() + "/"
+                    + loader.getTotalRows() + " rows already loaded");
+        final long st_trans = System.nanoTime();
+        try
+        {
+            loader.load(generators, 10);
+        }
+        finally
+        {
+            completions.close();
+        }
+        final long et_trans = System.nanoTime();
+        System.out.println("Issued " + completions.getIssued() + " inserts in " + (et_trans - st_trans)/1.0E9 + " seconds");
+
+        awaitCompletions(et_trans);
+        loader.finish();
+
+        printCompletionStats("LOAD");
+
+        Host host = cluster.getMetadata().getAllHosts().iterator().next();
+        double latencyMedian = tracker.getLatencyAtPercentile(host, null, null, 50);
+        double latency95Perc = tracker.getLatencyAtPercentile(host, null, null, 95);
+        double latency99Perc = tracker.getLatencyAtPercentile(host, null, null, 99);
+
+        session.close();
+        cluster.close();
+        System.out.println("[LOAD] Median Latency (us): " + latencyMedian);
+        System.out.println("[LOAD] 95th Percentile Latency (us): " + latency95Perc);
+        System.out.println("[LOAD] 99th Percentile Latency (us): " + latency99Perc);
+        printThroughput(st_trans);
+        System.out.println("[LOAD] Retried writes: " + loader.getRetries());
+        if(loader.getFailedRows() > 0)
+        {
+            //The rows are missing from the table, make the run fail instead of looking complete
+            System.out.println("[LOAD-STALLED] " + loader.getFailedRows() + " rows failed every attempt");
+            for(RangeLoader.Shard shard : loader.getStalledShards())
+                System.out.println("[LOAD-STALLED] Shard " + shard.id + ": " + shard.failed.get()
+                        + " failed rows, Checkpoint: " + shard.checkpoint + " (range " + shard.from + "-"
+                        + shard.to + ")");
+            System.exit(1);
+        }
+        System.out.println("All done");
+    }
+
+    /**
+     * Splits {@code ops} operations across the sender threads and blocks until all of them have been issued. Sender i
+     * issues every senderThreads-th operation of the aggregate schedule: its pacer runs at 1/senderThreads of the
+     * aggregate rate and is offset by i interarrivals, so the threads interleave instead of firing in lockstep.
+     */
+    private List<Sender> runSenders(long startNanos, int ops) throws InterruptedException, ExecutionException
+    {
+        List<Sender> senders = new ArrayList<Sender>();
+        if(replaySpeedup > 0)
+            replayClock = new ReplayClock(startNanos, replaySpeedup);
+        if(schedule != null)
+        {
+            schedule.start(startNanos);
+            tracker.setSchedule(schedule);
+            stopNanos = schedule.getEndNanos();
+            bounded = true;
+        }
+        completions = new CompletionTracker();
+        if(durationNanos > 0)
+        {
+            long durationEnd = startNanos + durationNanos;
+            if(!bounded || durationEnd - stopNanos < 0)
+                stopNanos = durationEnd;
+            bounded = true;
+            tracker.setWindowEnd(startNanos + durationNanos);
+            completions.setWindowEnd(startNanos + durationNanos);
+        }
+        for(int i=0; i<senderThreads; i++)
+        {
+            int from = (int)((long)ops * i / senderThreads);
+            int to = (int)((long)ops * (i+1) / senderThreads);
+            long senderStart = startNanos + (long)(i * interarrival * 1000);
+            senders.add(new Sender(i, from, to, senderStart));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(senderThreads);
+        try {
+            for(Future<Void> f : executor.invokeAll(senders))
+                f.get(); //propagate failures from the sender threads
+        } finally {
+            executor.shutdown();
+            completions.close();
+        }
+        return senders;
+    }
+
+    private static long lastSenderEnd(List<Sender> senders)
+    {
+        long end = Long.MIN_VALUE;
+        for(Sender s : senders)
+            end = Math.max(end, s.endNanos);
+        return end;
+    }
+
+    /**
+     * Returns as soon as the last outstanding response arrived, or gives up once no response arrived for 10 seconds.
+     */
+    private void awaitCompletions(long sendersEnd) throws InterruptedException
+    {
+        while(!completions.await(100, MILLISECONDS))
+        {
+            long lastActivity = Math.max(sendersEnd, completions.getLastCompletionNanos());
+            if(NANOSECONDS.toSeconds(System.nanoTime() - lastActivity) >= 10)
+                break;
+        }
+    }
+
+    private void printCompletionStats(String label)
+    {
+        System.out.println("[" + label + "-SUCCESS] Count: " + completions.getSucceeded());
+        System.out.println("[" + label + "-FAILURE] Count: " + completions.getFailed());
+        System.out.println("[" + label + "-TIMEOUT] Count: " + completions.getTimedOut() + " (included in failures)");
+        if(durationNanos > 0)
+            System.out.println("[" + label + "-LATE] Count: " + completions.getLate()
+                    + " (completed after the deadline, excluded from the results)");
+        if(completions.getPending() > 0)
+            System.out.println("[" + label + "-PENDING] Count: " + completions.getPending()
+                    + " (no response when the run ended)");
+    }
+
+    private void printThroughput(long st_trans)
+    {
+        long elapsed = durationNanos > 0 ? durationNanos : completions.getLastCompletionNanos() - st_trans;
+        System.out.println("Throughput: " + completions.getSucceeded()/(elapsed/1.0E9) + " reqs/sec");
+    }
+
+    /**
+     * Writes the median and tail latency of the chunks of each size to chunkStats.csv.
+     */
+    private void writeChunkStats()
+    {
+        String eol = System.getProperty("line.separator");
+        try (Writer writer = new FileWriter("chunkStats.csv")) {
+            writer.append("maxKeys,size,count,latency,latency99").append(eol);
+            for (Map.Entry<Integer, Histogram> entry : chunker.getChunkHistograms().entrySet()) {
+                writer.append(Integer.toString(chunker.getMaxKeys()))
+                        .append(',')
+                        .append(entry.getKey().toString())
+                        .append(',')
+                        .append(Long.toString(entry.getValue().getTotalCount()))
+                        .append(',')
+                        .append(Long.toString(entry.getValue().getValueAtPercentile(50)))
+                        .append(',')
+                        .append(Long.toString(entry.getValue().getValueAtPercentile(99)))
+                        .append(eol);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Creates the client cache from its capacity option: a number of entries, or a number of bytes when suffixed with
+     * KB, MB or GB.
+     */
+    private CachingMultiGet createCache()
+    {
+        String capacity = cacheCapacity.trim().toUpperCase();
+        long multiplier = 1;
+        if(capacity.endsWith("KB"))
+            multiplier = 1L << 10;
+        else if(capacity.endsWith("MB"))
+            multiplier = 1L << 20;
+        else if(capacity.endsWith("GB"))
+            multiplier = 1L << 30;
+        if(multiplier > 1)
+            capacity = capacity.substring(0, capacity.length() - 2);
+        return new CachingMultiGet(session, "usertable", "field0", Long.parseLong(capacity) * multiplier,
+                multiplier > 1, cacheTtlNanos, Arrays.<LatencyTracker>asList(tracker, batchTracker));
+    }
+
+    /**
+     * Parses a duration such as '300s', '5m', '1h' or '500ms' (plain numbers are seconds) into nanoseconds.
+     */
+    private static long parseDuration(String value)
+    {
+        value = value.trim();
+        if(value.endsWith("ms"))
+            return MILLISECONDS.toNanos(Long.parseLong(value.substring(0, value.length() - 2)));
+        if(value.endsWith("s"))
+            return SECONDS.toNanos(Long.parseLong(value.substring(0, value.length() - 1)));
+        if(value.endsWith("m"))
+            return MINUTES.toNanos(Long.parseLong(value.substring(0, value.length() - 1)));
+        if(value.endsWith("h"))
+            return HOURS.toNanos(Long.parseLong(value.substring(0, value.length() - 1)));
+        return SECONDS.toNanos(Long.parseLong(value));
+    }
+
+    private static long totalSent(List<Sender> senders)
+    {
+        long sent = 0;
+        for(Sender s : senders)
+            sent += s.sent;
+        return sent;
+    }
+
+    private void printSendingStats(List<Sender> senders, long st_trans, long et_trans)
+    {
+        long sent = totalSent(senders);
+        long lateCount = 0;
+        long maxLagNanos = 0;
+        for(Sender s : senders)
+        {
+            lateCount += s.pacer.getLateCount();
+            maxLagNanos = Math.max(maxLagNanos, s.pacer.getMaxLagNanos());
+            if(isDebug)
+                System.out.println("Sender " + s.id + " sending rate: "
+                        + s.sent/((s.endNanos - s.pacer.getStartNanos())/1.0E9) + " reqs/sec");
+        }
+        String target = replayClock != null ? "trace replay at " + replayClock.getSpeedup() + "x"
+                : interarrival > 0 ? "target: " + 1.0E6/interarrival + " reqs/sec" : "unpaced";
+        System.out.println("Sending rate: " + sent/((et_trans - st_trans)/1.0E9) + " reqs/sec (" + target + ", "
+                + senderThreads + " sender threads)");
+        System.out.println("Late sends: " + lateCount + " (max lag: " + NANOSECONDS.toMicros(maxLagNanos) + " us)");
+        long allocated = 0;
+        for(Sender s : senders)
+            allocated = s.allocatedBytes < 0 || allocated < 0 ? -1 : allocated + s.allocatedBytes;
+        if(allocated >= 0 && sent > 0)
+            System.out.println("Sender allocation: " + allocated/sent + " bytes/op");
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the calling thread, or -1 if the JVM cannot tell.
+     */
+    private static long threadAllocatedBytes()
+    {
+        if(THREADS instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    private void printPhaseStats()
+    {
+        for(RunSchedule.Phase phase : RunSchedule.Phase.values())
+        {
+            System.out.println("[PHASE-" + phase + "] Count: " + tracker.getPhaseOpsCount(phase)
+                    + ", Median Latency (us): " + tracker.getPhaseLatencyAtPercentile(phase, false, 50)
+                    + ", 99th Percentile Latency (us): " + tracker.getPhaseLatencyAtPercentile(phase, false, 99)
+                    + ", Corrected 99th Percentile Latency (us): " + tracker.getPhaseLatencyAtPercentile(phase, true, 99));
+        }
+    }
+
+    /**
+     * Issues a share of the workload from its own thread. Every sender owns its request generator and pacer, so request
+     * generation and statement building scale with the number of threads; only the Session, the trackers and the
+     * (synchronized) trace file are shared.
+     */
+    class Sender implements Callable<Void>
+    {
+        final int id;
+        final int from; //first operation (or row, for writes) issued by this sender, inclusive
+        final int to; //last operation (or row, for writes) issued by this sender, exclusive
+        final RequestGenerator requestGenerator;
+        final Pacer pacer;
+        final boolean paced; //writes without an explicit rate are sent back-to-back
+        final long startNanos;
+        volatile long endNanos;
+        volatile long sent;
+        volatile long allocatedBytes; //allocated by the sender thread while sending, -1 if unavailable
+
+        Sender(int id, int from, int to, long startNanos)
+        {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.startNanos = startNanos;
+            this.requestGenerator = createRequestGenerator();
+            this.paced = isRead || interarrival > 0;
+            this.pacer = paced ? new Pacer(createArrivalGenerator(interarrival * senderThreads), schedule)
+                    : new Pacer(new ConstantDoubleGenerator(0));
+        }
+
+        @Override
+        public Void call() throws Exception
+        {
+            long allocStart = threadAllocatedBytes();
+            pacer.start(startNanos);
+            for(int i=from; i<to; i++)
+            {
+                long intendedStart;
+                Statement stmt;
+                if(isRead && replayClock != null)
+                {
+                    //The recorded time is only known once the trace line is read, so build first and then wait
+                    stmt = requestGenerator.nextMultiGet();
+                    intendedStart = pacer.awaitIntendedStart(
+                            replayClock.intendedStart(requestGenerator.getLastRecordedTime()));
+                }
+                else
+                {
+                    intendedStart = paced ? pacer.acquire() : System.nanoTime();
+                    stmt = isRead ? requestGenerator.nextMultiGet() : requestGenerator.nextInsert(i);
+                }
+                if(bounded && intendedStart - stopNanos >= 0)
+                    break;
+                tracker.setIntendedStart(stmt, intendedStart);
+                ListenableFuture<?> operation;
+                try
+                {
+                    if(isRead && scatterGather != null)
+                        operation = scatterGather.execute(stmt, requestGenerator.getLastKeys());
+                    else if(isRead && scheduler != null)
+                        operation = scheduler.submit(stmt, requestGenerator.getLastKeys(), intendedStart);
+                    else if(isRead && chunker != null)
+                        operation = chunker.execute(stmt, requestGenerator.getLastKeys());
+                    else if(isRead && cache != null)
+                        operation = cache.execute(stmt, requestGenerator.getLastKeys());
+                    else if(isRead && coalescer != null)
+                        operation = coalescer.execute(stmt, requestGenerator.getLastKeys());
+                    else if(isRead && hedger != null)
+                        operation = hedger.execute(stmt, requestGenerator.getLastBatchSize());
+                    else
+                        operation = session.executeAsync(stmt);
+                }
+                catch(RuntimeException e)
+                {
+                    tracker.clearIntendedStart(stmt);
+                    throw e;
+                }
+                tracker.clearIntendedStartOnCompletion(stmt, operation);
+                completions.track(operation);
+                sent++;
+            }
+            endNanos = System.nanoTime();
+            allocatedBytes = allocStart < 0 ? -1 : threadAllocatedBytes() - allocStart;
+            return null;
+        }
+    }
+
     public static Statement generateMultiGet(String table, Set<String> keys, Set<String> fields)
      {
         final long st = System.nanoTime();
@@ -386,6 +1161,18 @@ public class AsyncClient {
         return stmt;
     }
 
+    /**
+     * Same as {@link #generateMultiGet(String, Set, Set)} for the field0 column, without copying the keys.
+     */
+    public static Statement generateMultiGet(String table, String[] keys)
+    {
+        Statement stmt = QueryBuilder.select(MULTIGET_FIELD).from(table)
+                .where(QueryBuilder.in("y_id", (Object[]) keys)).limit(keys.length);
+        stmt.setConsistencyLevel(ConsistencyLevel.ONE);
+        stmt.setFetchSize(Integer.MAX_VALUE);
+        return stmt;
+    }
+
     public static Statement generateInsert(String table, String key, HashMap<String, ByteIterator> values) {
         Insert insertStmt = QueryBuilder.insertInto(table);
 
@@ -406,46 +1193,10 @@ public class AsyncClient {
         return insertStmt;
     }
 
-    /**
-     * Reads and parses next line in the workload trace
-     * @throws UnsupportedOperationException
-     */
-    private static List<String> readMultiGetFromFile(FileGenerator filegen) throws UnsupportedOperationException
-    {
-        String line = filegen.nextString();
-        if(line == null)
-            return null;
-        List<String> task;
-        line.replaceAll("\n", "");
-        if(line.startsWith("R "))
-            task = new ArrayList(Arrays.asList(line.split(" ")));
-        else
-            throw new UnsupportedOperationException();
-        task.remove(0); //remove R
-        task.remove(task.size()-1); //remove interarrival modifier (no longer used)
-        return task;
-    }
-
     public static String buildKeyName(long keynum) {
         return "user" + keynum;
     }
 
-    /**
-     * Builds values for all fields.
-     */
-    private HashMap<String, ByteIterator> buildValues(List<String> fields) {
-        HashMap<String, ByteIterator> values = new HashMap<String, ByteIterator>();
-
-        for (String fieldkey : fields) {
-            ByteIterator data;
-
-            // fill with random data
-            data = new RandomByteIterator(valueGenerator.nextInt());
-            values.put(fieldkey, data);
-        }
-        return values;
-    }
-
     public static CommandLine parseArgs(String[] args)
     {
         CommandLine commandLine;
@@ -471,7 +1222,8 @@ public class AsyncClient {
                 .build();
         Option option_E = Option.builder("trc")
                 .longOpt("trace-file")
-                .desc("Path to the trace file for the batch-distr")
+                .desc("Path to the trace file for the batch-distr, either text or compiled with generators.BinaryTrace "
+                        + "(detected from its header)")
                 .hasArg()
                 .type(String.class)
                 .argName("path")
@@ -533,6 +1285,190 @@ public class AsyncClient {
         Option option_O = Option.builder("debug")
                 .desc("Enable debugging mode")
                 .build();
+        Option option_P = Option.builder("threads")
+                .longOpt("sender-threads")
+                .desc("Number of threads generating and sending requests; the target rate is split evenly between them")
+                .hasArg()
+                .type(Integer.class)
+                .argName("number")
+                .build();
+        Option option_Q = Option.builder("concurrency")
+                .desc("Comma-separated closed-loop concurrency levels (e.g. '1,8,64'). Enables closed-loop reads, "
+                        + "issuing the operations-count at each level")
+                .hasArg()
+                .argName("list")
+                .build();
+        Option option_R = Option.builder("calibrate")
+                .desc("Ramp the offered read load to find the saturation point and store it in the calibration file")
+                .build();
+        Option option_S = Option.builder("calfile")
+                .longOpt("calibration-file")
+                .desc("File holding calibrated capacities, used to derive the interarrival from the utilization")
+                .hasArg()
+                .argName("path")
+                .build();
+        Option option_T = Option.builder("calstart")
+                .desc("First offered rate of the calibration ramp, in requests per second")
+                .hasArg()
+                .type(Double.class)
+                .argName("number")
+                .build();
+        Option option_U = Option.builder("calstep")
+                .desc("Duration of each calibration step, in seconds")
+                .hasArg()
+                .type(Integer.class)
+                .argName("number")
+                .build();
+        Option option_V = Option.builder("arrival")
+                .longOpt("arrival-distr")
+                .desc("Arrival process. Can be 'constant', 'poisson', 'mmpp' (bursty) or 'onoff'")
+                .hasArg()
+                .argName("type")
+                .build();
+        Option option_W = Option.builder("arrivalp")
+                .desc("Comma-separated arrival process parameters. For 'mmpp': burst rate factor, fraction of time in "
+                        + "bursts, mean burst duration in us (default '10,0.1,10000'). For 'onoff': mean ON and OFF "
+                        + "durations in us (default '50000,50000')")
+                .hasArg()
+                .argName("list")
+                .build();
+        Option option_X = Option.builder("replay")
+                .desc("Replay trace workloads with their recorded interarrival gaps, compressed by the given speed-up "
+                        + "factor (e.g. 10 for 10x), instead of the synthetic arrival process")
+                .hasArg()
+                .type(Double.class)
+                .argName("factor")
+                .build();
+        Option option_Y = Option.builder("phases")
+                .desc("Phased run schedule as 'warmup,ramp,steady,cooldown' durations in seconds. Each phase is "
+                        + "recorded separately and only the steady state is reported as the headline result; the run "
+                        + "ends after the cool-down (or after operations-count operations, whichever comes first)")
+                .hasArg()
+                .argName("list")
+                .build();
+        Option option_Z = Option.builder("rampfrom")
+                .desc("Percentage of the target rate offered during warm-up, from which the ramp phase starts; in "
+                        + "(0, 100] (default: 10)")
+                .hasArg()
+                .type(Double.class)
+                .argName("number")
+                .build();
+        Option option_AA = Option.builder("duration")
+                .desc("Run reads for a fixed time (e.g. '300s', '5m') instead of operations-count operations. Only "
+                        + "responses received before the deadline are reported")
+                .hasArg()
+                .argName("time")
+                .build();
+        Option option_AB = Option.builder("grace")
+                .desc("How long to wait for in-flight requests after the deadline of a time-bounded run "
+                        + "(default '10s')")
+                .hasArg()
+                .argName("time")
+                .build();
+        Option option_AC = Option.builder("stmt")
+                .desc("How multigets are built. Can be 'builder' (QueryBuilder with inlined keys), 'prepared' (one "
+                        + "prepared 'IN ?' statement bound to a key list) or 'arity' (one prepared statement per "
+                        + "number of keys)")
+                .hasArg()
+                .argName("type")
+                .build();
+        Option option_AD = Option.builder("window")
+                .desc("Loads the dataset through a prepared insert pipeline, as fast as possible but with at most this "
+                        + "many writes in flight, instead of pacing the writes (write workload only)")
+                .hasArg()
+                .argName("inserts")
+                .build();
+        Option option_AE = Option.builder("shards")
+                .desc("Number of key ranges the bulk load is split into, drained by the sender threads (default: "
+                        + "one per thread)")
+                .hasArg()
+                .argName("count")
+                .build();
+        Option option_AF = Option.builder("checkpoint")
+                .desc("File recording the progress of the bulk load; an interrupted load resumes from it")
+                .hasArg()
+                .argName("file")
+                .build();
+        Option option_AG = Option.builder("scatter")
+                .desc("Sends each multiget as concurrent sub-queries routed to the replicas, grouping keys by "
+                        + "'replica' set or by 'partition', instead of a single query to one coordinator")
+                .hasArg()
+                .argName("type")
+                .build();
+        Option option_AH = Option.builder("sched")
+                .desc("Queues multigets on the client and dispatches them by policy: 'fifo', 'smallest_first', 'edf' "
+                        + "(earliest deadline first) or 'bottleneck' (smallest per-replica share first)")
+                .hasArg()
+                .argName("policy")
+                .build();
+        Option option_AI = Option.builder("schedwindow")
+                .desc("Maximum number of scheduled multigets in flight per coordinator (default: 32)")
+                .hasArg()
+                .argName("requests")
+                .build();
+        Option option_AJ = Option.builder("deadline")
+                .desc("EDF deadline of a multiget after its intended start, as 'base,perKey' in microseconds "
+                        + "(default: 1000,100)")
+                .hasArg()
+                .argName("budget")
+                .build();
+        Option option_AK = Option.builder("lbp")
+                .desc("Load balancing policy: 'default' (the driver's) or 'latency' (ranks hosts by decaying latency "
+                        + "and in-flight requests, with rate control; not with -sched)")
+                .hasArg()
+                .argName("policy")
+                .build();
+        Option option_AL = Option.builder("hedge")
+                .desc("Hedges multigets still pending after the given latency percentile of recent multigets of the same "
+                        + "size, with at most the given percentage of multigets hedged, as 'percentile,budget' "
+                        + "(e.g. 95,5)")
+                .hasArg()
+                .argName("params")
+                .build();
+        Option option_AM = Option.builder("coalesce")
+                .desc("Coalesces the keys of concurrent multigets: keys already being read by an in-flight multiget are "
+                        + "not requested again")
+                .build();
+        Option option_AN = Option.builder("cache")
+                .desc("Serves multigets from a client-side W-TinyLFU row cache of this capacity, in entries, or in bytes "
+                        + "with a KB, MB or GB suffix")
+                .hasArg()
+                .argName("capacity")
+                .build();
+        Option option_AO = Option.builder("cachettl")
+                .desc("Time after which cached rows expire, e.g. '30s' (default: never)")
+                .hasArg()
+                .argName("time")
+                .build();
+        Option option_AP = Option.builder("chunk")
+                .desc("Splits multigets with more keys than this into concurrent sub-queries of at most this many keys; "
+                        + "chunk latencies are written to chunkStats.csv")
+                .hasArg()
+                .argName("keys")
+                .build();
+        Option option_AQ = Option.builder("keytable")
+                .desc("Maximum number of rows whose keys are precomputed into on-heap arrays; larger tables pack them "
+                        + "off-heap, which may need a larger -XX:MaxDirectMemorySize (default: 1000000)")
+                .hasArg()
+                .argName("rows")
+                .build();
+        Option option_AR = Option.builder("prefetch")
+                .desc("Number of trace records read ahead of the senders by a background thread, 0 to read the trace "
+                        + "on the sending threads (default: 4096)")
+                .hasArg()
+                .argName("records")
+                .build();
+        Option option_AS = Option.builder("wrate")
+                .desc("Target rate of write workloads in ops/sec (default: unpaced, as fast as the cluster accepts them)")
+                .hasArg()
+                .argName("ops/sec")
+                .build();
+        Option option_AT = Option.builder("schedqueue")
+                .desc("Maximum number of scheduled multigets queued per coordinator; further ones are rejected and "
+                        + "counted as failures (default: 1024)")
+                .hasArg()
+                .argName("requests")
+                .build();
 
         Options options = new Options();
         options.addOption(option_A);
@@ -550,6 +1486,37 @@ public class AsyncClient {
         options.addOption(option_M);
         options.addOption(option_N);
         options.addOption(option_O);
+        options.addOption(option_P);
+        options.addOption(option_Q);
+        options.addOption(option_R);
+        options.addOption(option_S);
+        options.addOption(option_T);
+        options.addOption(option_U);
+        options.addOption(option_V);
+        options.addOption(option_W);
+        options.addOption(option_X);
+        options.addOption(option_Y);
+        options.addOption(option_Z);
+        options.addOption(option_AA);
+        options.addOption(option_AB);
+        options.addOption(option_AC);
+        options.addOption(option_AD);
+        options.addOption(option_AE);
+        options.addOption(option_AF);
+        options.addOption(option_AG);
+        options.addOption(option_AH);
+        options.addOption(option_AI);
+        options.addOption(option_AJ);
+        options.addOption(option_AK);
+        options.addOption(option_AL);
+        options.addOption(option_AM);
+        options.addOption(option_AN);
+        options.addOption(option_AO);
+        options.addOption(option_AP);
+        options.addOption(option_AQ);
+        options.addOption(option_AR);
+        options.addOption(option_AS);
+        options.addOption(option_AT);
 
         CommandLineParser parser = new DefaultParser();
         try
@@ -1,3 +1,4 @@
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Host;
 import com.datastax.driver.core.LatencyTracker;
@@ -16,6 +17,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -37,7 +39,7 @@ public class BatchPercentileTracker implements LatencyTracker {
 
     private volatile Cluster cluster;
 
-    private int opsCounter=0;
+    private final AtomicInteger opsCounter = new AtomicInteger();
     private long lastUpdateTS;
 
     Pattern pattern = Pattern.compile("(?<=IN \\()(.*)(?=\\) LIMIT)");
@@ -75,6 +77,10 @@ public class BatchPercentileTracker implements LatencyTracker {
      */
 
     protected Integer computeKey(Host host, Statement statement, Exception exception) {
+        if (statement instanceof BoundStatement) {
+            int batchSize = PreparedMultiGets.batchSize((BoundStatement) statement);
+            return batchSize < 0 ? null : batchSize;
+        }
         Matcher m = this.pattern.matcher(statement.toString());
         if(m.find()) {
             String keys = m.group(1);
@@ -90,7 +96,7 @@ public class BatchPercentileTracker implements LatencyTracker {
         this.lastUpdateTS = System.nanoTime();
         if (!include(host, statement, exception))
             return;
-        this.opsCounter++;
+        this.opsCounter.incrementAndGet();
         long latencyUs = NANOSECONDS.toMicros(newLatencyNanos);
         try {
             Recorder recorder = getRecorder(host, statement, exception);
@@ -120,7 +126,7 @@ public class BatchPercentileTracker implements LatencyTracker {
         if(this.finalHistogram == null)
             this.finalHistogram = histogram;
 
-        if (this.finalHistogram == null || this.finalHistogram.getTotalCount() < opsCounter) {
+        if (this.finalHistogram == null || this.finalHistogram.getTotalCount() < opsCounter.get()) {
             System.out.println("total count " + this.finalHistogram.getTotalCount());
             System.out.println(this.finalHistogram);
             return -1;
@@ -142,7 +148,7 @@ public class BatchPercentileTracker implements LatencyTracker {
 
     public boolean isRunComplete()
     {
-        if(this.opCount + 1 == this.opsCounter)
+        if(this.opCount + 1 == this.opsCounter.get())
             return true;
         else
             return false;
@@ -155,7 +161,7 @@ public class BatchPercentileTracker implements LatencyTracker {
 
     public int getOpsCount()
     {
-        return this.opsCounter-1;
+        return this.opsCounter.get()-1;
     }
 
     private Recorder getRecorder(Host host, Statement statement, Exception exception) {
@@ -247,6 +253,9 @@ public class BatchPercentileTracker implements LatencyTracker {
      * @return whether the measurement should be included.
      */
     protected boolean include(Host host, Statement statement, Exception exception) {
+        // parts of a client-routed operation, which its issuer reports as a whole
+        if (statement instanceof RoutedStatement)
+            return false;
         // query was successful: always consider
         if (exception == null)
             return true;
@@ -0,0 +1,69 @@
+import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import misc.ByteIterator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Inserts rows through a single prepared statement, as fast as the cluster accepts them but with at most a fixed
+ * number of writes in flight: {@link #write} blocks once the window is full until a response frees a slot, instead of
+ * queueing requests until the connection overruns its in-flight limit.
+ * <p/>
+ * The value column is bound as raw bytes when it is a blob; for text columns the bytes (printable ASCII, see
+ * {@link misc.RandomByteIterator}) are turned into a String without going through a charset decoder.
+ */
+public class BulkWriter {
+    private final Session session;
+    private final PreparedStatement insert;
+    private final boolean blobValue;
+    private final Semaphore window;
+
+    private final FutureCallback<Object> releaseSlot = new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+            window.release();
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            window.release();
+        }
+    };
+
+    /**
+     * Creates a new instance.
+     *
+     * @param session     the session to write with.
+     * @param table       the table to insert into.
+     * @param field       the value column.
+     * @param windowSize  the maximum number of writes in flight.
+     */
+    public BulkWriter(Session session, String table, String field, int windowSize) {
+        this.session = session;
+        this.window = new Semaphore(windowSize);
+        this.insert = session.prepare("INSERT INTO " + table + " (y_id, " + field + ") VALUES (?, ?)");
+        this.insert.setConsistencyLevel(ConsistencyLevel.ONE);
+        this.blobValue = insert.getVariables().getType(1).getName() == DataType.Name.BLOB;
+    }
+
+    /**
+     * Issues an insert, waiting first for a free slot in the window if needed.
+     */
+    public ResultSetFuture write(String key, ByteIterator value) throws InterruptedException {
+        byte[] bytes = value.toArray();
+        Object bound = blobValue ? ByteBuffer.wrap(bytes) : new String(bytes, StandardCharsets.US_ASCII);
+        window.acquire();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(insert.bind(key, bound));
+        } catch (RuntimeException e) {
+            window.release();
+            throw e;
+        }
+        Futures.addCallback(future, releaseSlot);
+        return future;
+    }
+}
@@ -0,0 +1,124 @@
+import com.datastax.driver.core.*;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import misc.WTinyLfuCache;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Serves multigets from an in-process cache of rows: cached keys are answered locally and only the missing keys are
+ * sent to the cluster, in a single query whose rows are then cached. Keys not found in the table are not cached.
+ * <p/>
+ * The queries select the key column along with the value, so that rows can be cached by key. They are
+ * {@link RoutedStatement}s, ignored by the trackers: multigets are reported as a whole once all their keys are
+ * available, with a latency measured from their submission.
+ */
+public class CachingMultiGet {
+    private final Session session;
+    private final String table;
+    private final String field;
+    private final Set<String> fields;
+    private final List<LatencyTracker> trackers;
+    private final WTinyLfuCache<String, Row> cache;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param session  the session to execute with.
+     * @param table    the table to read from.
+     * @param field    the column to read.
+     * @param capacity the capacity of the cache, in entries or in bytes.
+     * @param inBytes  whether the capacity is in bytes (key and value sizes) rather than in entries.
+     * @param ttlNanos the time after which cached rows expire, or 0 for no expiration.
+     * @param trackers the trackers completed multigets are reported to.
+     */
+    public CachingMultiGet(Session session, String table, final String field, long capacity, boolean inBytes,
+                           long ttlNanos, List<LatencyTracker> trackers) {
+        this.session = session;
+        this.table = table;
+        this.field = field;
+        this.fields = new HashSet<String>(Arrays.asList("y_id", field));
+        this.trackers = trackers;
+        WTinyLfuCache.Weigher<String, Row> weigher = inBytes
+                ? new WTinyLfuCache.Weigher<String, Row>() {
+                    @Override
+                    public int weigh(String key, Row row) {
+                        // A null column has no value bytes
+                        ByteBuffer value = row.getBytesUnsafe(field);
+                        return key.length() + (value == null ? 0 : value.remaining());
+                    }
+                }
+                : new WTinyLfuCache.Weigher<String, Row>() {
+                    @Override
+                    public int weigh(String key, Row row) {
+                        return 1;
+                    }
+                };
+        // In bytes mode, size the frequency sketch for rows of about 100 bytes
+        int expectedEntries = (int) Math.min(Integer.MAX_VALUE, inBytes ? capacity / 100 : capacity);
+        this.cache = new WTinyLfuCache<String, Row>(capacity, expectedEntries, ttlNanos, weigher);
+    }
+
+    /**
+     * Executes a multiget.
+     *
+     * @param statement the equivalent multiget, only used to report the logical operation to the trackers.
+     * @param keys      the keys to read.
+     * @return a future on the rows found.
+     */
+    public ListenableFuture<List<Row>> execute(final Statement statement, Collection<String> keys) {
+        final long start = System.nanoTime();
+        final List<Row> cached = new ArrayList<Row>(keys.size());
+        Set<String> missing = new HashSet<String>();
+        for (String key : keys) {
+            Row row = cache.get(key);
+            if (row != null)
+                cached.add(row);
+            else
+                missing.add(key);
+        }
+        if (missing.isEmpty()) {
+            report(statement, null, System.nanoTime() - start);
+            return Futures.immediateFuture(cached);
+        }
+
+        Statement query = AsyncClient.generateMultiGet(table, missing, fields);
+        ListenableFuture<List<Row>> result = Futures.transform(session.executeAsync(new RoutedStatement(query, null)),
+                new Function<ResultSet, List<Row>>() {
+                    @Override
+                    public List<Row> apply(ResultSet rs) {
+                        List<Row> rows = new ArrayList<Row>(cached);
+                        for (Row row : rs) {
+                            cache.put(row.getString("y_id"), row);
+                            rows.add(row);
+                        }
+                        return rows;
+                    }
+                });
+        Futures.addCallback(result, new FutureCallback<List<Row>>() {
+            @Override
+            public void onSuccess(List<Row> rows) {
+                report(statement, null, System.nanoTime() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                report(statement, throwable instanceof Exception ? (Exception) throwable : null,
+                        System.nanoTime() - start);
+            }
+        });
+        return result;
+    }
+
+    private void report(Statement statement, Exception exception, long latencyNanos) {
+        for (LatencyTracker tracker : trackers)
+            tracker.update(null, statement, exception, latencyNanos);
+    }
+
+    public WTinyLfuCache<String, Row> getCache() {
+        return cache;
+    }
+}
@@ -0,0 +1,243 @@
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import generators.ConstantDoubleGenerator;
+import misc.Pacer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Finds the saturation point of the cluster for the current read workload.
+ * <p/>
+ * The offered (open-loop, paced) multiget rate is ramped up geometrically in fixed-length steps. After each step the
+ * achieved throughput and the latency percentiles (measured from the intended start times) are compared with the
+ * offered rate and with the first step: the first step that cannot keep up with the offered rate, whose 99th
+ * percentile latency blows up, or that fails too many requests marks the knee. The throughput achieved by the last
+ * step before the knee is the calibrated capacity, which is persisted so later runs can derive their interarrival
+ * from it. Capacities are stored in multigets per second for a given scenario and workload (batch size distribution
+ * or trace): converting them through keys per second would need the mean batch size of the later run, which the
+ * nominal mean of its distribution does not give once the drawn sizes are clamped.
+ */
+public class Calibrator {
+    private static final double STEP_FACTOR = 1.25; // offered rate multiplier between consecutive steps
+    private static final double MIN_ACHIEVED_RATIO = 0.95; // below this achieved/offered ratio the step is saturated
+    private static final double MAX_LATENCY_FACTOR = 10; // p99 above this multiple of the first step's p99 is saturated
+    private static final double MAX_FAILURE_RATIO = 0.01;
+    private static final long DRAIN_TIMEOUT_SECONDS = 10;
+
+    private final Session session;
+    private final List<RequestGenerator> generators; // one per sending thread
+    private final long stepNanos;
+
+    /**
+     * @param session     the session to issue requests on.
+     * @param generators  one request generator per sending thread.
+     * @param stepSeconds how long each offered rate is sustained.
+     */
+    public Calibrator(Session session, List<RequestGenerator> generators, int stepSeconds) {
+        this.session = session;
+        this.generators = generators;
+        this.stepNanos = SECONDS.toNanos(stepSeconds);
+    }
+
+    /**
+     * Ramps the offered rate from {@code startRate} until the cluster saturates.
+     *
+     * @param startRate the first offered rate, in multigets per second. It should be comfortably below saturation.
+     * @return the last step before saturation, or null if even the first step was saturated.
+     */
+    public Step calibrate(double startRate) throws InterruptedException, ExecutionException {
+        Step baseline = null;
+        Step lastSustained = null;
+        for (double rate = startRate; ; rate *= STEP_FACTOR) {
+            Step step = runStep(rate);
+            if (baseline == null)
+                baseline = step;
+            boolean saturated = step.getAchievedRate() < MIN_ACHIEVED_RATIO * step.offeredRate
+                    || step.failed > MAX_FAILURE_RATIO * step.issued
+                    || !step.drained
+                    || step.getLatencyAtPercentile(99) > MAX_LATENCY_FACTOR * Math.max(1, baseline.getLatencyAtPercentile(99));
+            System.out.println("[CALIBRATION] Offered: " + step.offeredRate + " reqs/sec"
+                    + ", Achieved: " + step.getAchievedRate() + " reqs/sec"
+                    + ", Median Latency (us): " + step.getLatencyAtPercentile(50)
+                    + ", 99th Percentile Latency (us): " + step.getLatencyAtPercentile(99)
+                    + ", Failures: " + step.failed
+                    + (saturated ? " (saturated)" : ""));
+            if (saturated)
+                return lastSustained;
+            lastSustained = step;
+        }
+    }
+
+    /**
+     * Offers {@code rate} multigets per second for one step, then waits (bounded) for the step's requests to drain.
+     */
+    Step runStep(double rate) throws InterruptedException, ExecutionException {
+        final int threads = generators.size();
+        final StepState state = new StepState();
+        final long startNanos = System.nanoTime();
+        final long endNanos = startNanos + stepNanos;
+        final double interarrival = 1.0E6 * threads / rate; // per-thread interarrival in microseconds
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Void>> senders = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < threads; i++) {
+                final RequestGenerator generator = generators.get(i);
+                final long threadStart = startNanos + (long) (i * interarrival * 1000 / threads);
+                senders.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Pacer pacer = new Pacer(new ConstantDoubleGenerator(interarrival));
+                        pacer.start(threadStart);
+                        while (true) {
+                            long intendedStart = pacer.acquire();
+                            if (intendedStart - endNanos >= 0)
+                                return null;
+                            state.issue(generator, intendedStart);
+                        }
+                    }
+                });
+            }
+            for (Future<Void> f : executor.invokeAll(senders))
+                f.get();
+        } finally {
+            executor.shutdown();
+        }
+        boolean drained = state.awaitDrained(SECONDS.toMillis(DRAIN_TIMEOUT_SECONDS));
+        return new Step(rate, state, startNanos, drained);
+    }
+
+    /**
+     * Counters and latency histogram for the requests issued by one step.
+     */
+    private class StepState {
+        final AtomicLong issued = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong keys = new AtomicLong();
+        final Recorder recorder = new Recorder(3);
+        volatile long lastCompletionNanos;
+
+        void issue(RequestGenerator generator, final long intendedStart) {
+            ResultSetFuture rsf = session.executeAsync(generator.nextMultiGet());
+            keys.addAndGet(generator.getLastBatchSize());
+            issued.incrementAndGet();
+            Futures.addCallback(rsf, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet resultSet) {
+                    long now = System.nanoTime();
+                    recorder.recordValue(NANOSECONDS.toMicros(now - intendedStart));
+                    lastCompletionNanos = now;
+                    completed.incrementAndGet();
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    lastCompletionNanos = System.nanoTime();
+                    failed.incrementAndGet();
+                }
+            });
+        }
+
+        boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + MILLISECONDS.toNanos(timeoutMillis);
+            while (completed.get() + failed.get() < issued.get()) {
+                if (System.nanoTime() - deadline >= 0)
+                    return false;
+                MILLISECONDS.sleep(10);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Outcome of one calibration step.
+     */
+    public static class Step {
+        final double offeredRate;
+        final long issued;
+        final long completed;
+        final long failed;
+        final long keys;
+        final long elapsedNanos;
+        final boolean drained;
+        final Histogram histogram; // latencies from the intended start time, in microseconds
+
+        Step(double offeredRate, StepState state, long startNanos, boolean drained) {
+            this.offeredRate = offeredRate;
+            this.issued = state.issued.get();
+            this.completed = state.completed.get();
+            this.failed = state.failed.get();
+            this.keys = state.keys.get();
+            this.elapsedNanos = Math.max(1, state.lastCompletionNanos - startNanos);
+            this.drained = drained;
+            this.histogram = state.recorder.getIntervalHistogram();
+        }
+
+        public double getAchievedRate() {
+            return completed / (elapsedNanos / 1.0E9);
+        }
+
+        /**
+         * Returns the achieved throughput in keys (rather than multigets) per second.
+         */
+        public double getAchievedKeyRate() {
+            return issued == 0 ? 0 : getAchievedRate() * keys / issued;
+        }
+
+        public long getLatencyAtPercentile(double percentile) {
+            return histogram.getValueAtPercentile(percentile);
+        }
+    }
+
+    /**
+     * Returns the calibrated capacity (in multigets per second) for the given experiment scenario and workload, or a
+     * negative value if they have not been calibrated.
+     */
+    public static double loadCapacity(String file, String scenario, String workload) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (IOException e) {
+            System.err.println("Exception: " + e);
+            return -1;
+        }
+        String value = properties.getProperty(scenario + "." + workload + ".capacity.reqsPerSec");
+        return value == null ? -1 : Double.parseDouble(value);
+    }
+
+    /**
+     * Stores the calibrated capacity for the given experiment scenario and workload, keeping the entries of the
+     * others. The rate in keys per second is only kept for reference.
+     */
+    public static void saveCapacity(String file, String scenario, String workload, double reqsPerSec,
+                                    double keysPerSec) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (FileNotFoundException e) {
+            // first calibration
+        }
+        properties.setProperty(scenario + "." + workload + ".capacity.reqsPerSec", Double.toString(reqsPerSec));
+        properties.setProperty(scenario + "." + workload + ".capacity.keysPerSec", Double.toString(keysPerSec));
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, "Calibrated saturation capacity per experiment scenario");
+        }
+    }
+}
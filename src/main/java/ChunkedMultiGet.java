@@ -0,0 +1,145 @@
+import com.datastax.driver.core.*;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Splits multigets with more than a given number of keys into concurrent sub-queries of at most that many keys
+ * (chunks), so that no single IN query produces an oversized coordinator work item or response.
+ * <p/>
+ * Chunks are {@link RoutedStatement}s, ignored by the latency trackers: multigets are reported to them as a whole,
+ * once their last chunk completed. The latency of every chunk is recorded separately, per chunk size.
+ */
+public class ChunkedMultiGet {
+    private final Session session;
+    private final String table;
+    private final String field;
+    private final int maxKeys;
+    private final PreparedMultiGets preparedMultiGets; // null to build chunks with QueryBuilder
+    private final List<LatencyTracker> trackers;
+    private final ConcurrentMap<Integer, Recorder> chunkRecorders = new ConcurrentHashMap<Integer, Recorder>();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param session           the session to execute with.
+     * @param table             the table to read from.
+     * @param field             the column to read.
+     * @param maxKeys           the maximum number of keys per query.
+     * @param preparedMultiGets builds the chunks from prepared statements, or null to use QueryBuilder.
+     * @param trackers          the trackers the logical multigets are reported to.
+     */
+    public ChunkedMultiGet(Session session, String table, String field, int maxKeys,
+                           PreparedMultiGets preparedMultiGets, List<LatencyTracker> trackers) {
+        this.session = session;
+        this.table = table;
+        this.field = field;
+        this.maxKeys = maxKeys;
+        this.preparedMultiGets = preparedMultiGets;
+        this.trackers = trackers;
+    }
+
+    /**
+     * Executes a multiget.
+     *
+     * @param statement the equivalent single multiget, only used to report the logical operation to the trackers.
+     * @param keys      the keys to read.
+     * @return a future on the merged rows of all chunks.
+     */
+    public ListenableFuture<List<Row>> execute(final Statement statement, Collection<String> keys) {
+        final long start = System.nanoTime();
+        List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>();
+        List<String> chunk = new ArrayList<String>(Math.min(maxKeys, keys.size()));
+        for (String key : keys) {
+            chunk.add(key);
+            if (chunk.size() == maxKeys) {
+                futures.add(send(chunk, start));
+                chunk = new ArrayList<String>(maxKeys);
+            }
+        }
+        if (!chunk.isEmpty())
+            futures.add(send(chunk, start));
+
+        ListenableFuture<List<Row>> merged = Futures.transform(Futures.allAsList(futures),
+                new Function<List<ResultSet>, List<Row>>() {
+                    @Override
+                    public List<Row> apply(List<ResultSet> results) {
+                        List<Row> rows = new ArrayList<Row>();
+                        for (ResultSet rs : results)
+                            rows.addAll(rs.all());
+                        return rows;
+                    }
+                });
+        Futures.addCallback(merged, new FutureCallback<List<Row>>() {
+            @Override
+            public void onSuccess(List<Row> rows) {
+                report(statement, null, System.nanoTime() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                report(statement, throwable instanceof Exception ? (Exception) throwable : null,
+                        System.nanoTime() - start);
+            }
+        });
+        return merged;
+    }
+
+    private ResultSetFuture send(List<String> keys, final long start) {
+        Statement query = preparedMultiGets != null ? preparedMultiGets.bind(keys)
+                : AsyncClient.generateMultiGet(table, new HashSet<String>(keys), Collections.singleton(field));
+        ResultSetFuture future = session.executeAsync(new RoutedStatement(query, null));
+        final Recorder recorder = getChunkRecorder(keys.size());
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                recorder.recordValue(NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                // failed chunks fail their multiget, which is reported as such
+            }
+        });
+        return future;
+    }
+
+    private void report(Statement statement, Exception exception, long latencyNanos) {
+        for (LatencyTracker tracker : trackers)
+            tracker.update(null, statement, exception, latencyNanos);
+    }
+
+    private Recorder getChunkRecorder(int chunkSize) {
+        Recorder recorder = chunkRecorders.get(chunkSize);
+        if (recorder == null) {
+            recorder = new Recorder(2);
+            Recorder old = chunkRecorders.putIfAbsent(chunkSize, recorder);
+            if (old != null)
+                recorder = old;
+        }
+        return recorder;
+    }
+
+    /**
+     * Returns the histograms of the chunk latencies (in microseconds) recorded since the last call, per chunk size.
+     */
+    public Map<Integer, Histogram> getChunkHistograms() {
+        Map<Integer, Histogram> histograms = new TreeMap<Integer, Histogram>();
+        for (Map.Entry<Integer, Recorder> entry : chunkRecorders.entrySet())
+            histograms.put(entry.getKey(), entry.getValue().getIntervalHistogram());
+        return histograms;
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+}
@@ -0,0 +1,147 @@
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Closed-loop load generator: a fixed number of logical clients each issue their next multiget only once the
+ * previous one has completed, so the number of in-flight requests never exceeds the concurrency level. Measuring
+ * throughput across increasing concurrency levels gives the maximum sustainable throughput directly.
+ */
+public class ClosedLoopRunner {
+    private final Session session;
+    private final List<RequestGenerator> generators;
+
+    /**
+     * @param session    the session to issue requests on.
+     * @param generators one request generator per logical client; this bounds the highest concurrency level.
+     */
+    public ClosedLoopRunner(Session session, List<RequestGenerator> generators) {
+        this.session = session;
+        this.generators = generators;
+    }
+
+    /**
+     * Issues {@code ops} multigets with {@code concurrency} logical clients and blocks until all of them completed.
+     */
+    public Result run(int concurrency, int ops) throws InterruptedException {
+        if (concurrency > generators.size())
+            throw new IllegalArgumentException("Concurrency " + concurrency + " exceeds the number of clients ("
+                    + generators.size() + ")");
+
+        Level level = new Level(concurrency, ops);
+        level.startNanos = System.nanoTime();
+        for (int i = 0; i < concurrency; i++)
+            new LogicalClient(level, generators.get(i)).issueNext();
+        level.done.await();
+        level.endNanos = System.nanoTime();
+        return new Result(concurrency, level.completed.get(), level.failed.get(), level.endNanos - level.startNanos,
+                level.recorder.getIntervalHistogram());
+    }
+
+    /**
+     * State shared by all logical clients of one concurrency level.
+     */
+    private static class Level {
+        final AtomicInteger remaining; // operations not yet issued
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final CountDownLatch done;
+        final Recorder recorder = new Recorder(3);
+        long startNanos;
+        long endNanos;
+
+        Level(int concurrency, int ops) {
+            this.remaining = new AtomicInteger(ops);
+            this.done = new CountDownLatch(concurrency);
+        }
+    }
+
+    /**
+     * A client with at most one request in flight. Completion callbacks run on the driver's I/O threads and issue
+     * the next request from there; executeAsync does not block, so this does not stall the event loop.
+     * <p/>
+     * A request that fails at once (e.g. no host available) completes its callback synchronously, inside
+     * {@link #issueNext()}. Instead of recursing, the callback then only counts the request it owes, and the
+     * outermost call issues it from its loop.
+     */
+    private class LogicalClient implements FutureCallback<ResultSet> {
+        private final Level level;
+        private final RequestGenerator generator;
+        private final AtomicInteger owed = new AtomicInteger(); // requests to issue, the first caller issues them all
+        private long issuedAt;
+
+        LogicalClient(Level level, RequestGenerator generator) {
+            this.level = level;
+            this.generator = generator;
+        }
+
+        void issueNext() {
+            if (owed.getAndIncrement() > 0)
+                return;
+            do {
+                issueOne();
+            } while (owed.decrementAndGet() > 0);
+        }
+
+        private void issueOne() {
+            if (level.remaining.getAndDecrement() <= 0) {
+                level.done.countDown();
+                return;
+            }
+            issuedAt = System.nanoTime();
+            ResultSetFuture rsf = session.executeAsync(generator.nextMultiGet());
+            Futures.addCallback(rsf, this);
+        }
+
+        @Override
+        public void onSuccess(ResultSet resultSet) {
+            level.recorder.recordValue(NANOSECONDS.toMicros(System.nanoTime() - issuedAt));
+            level.completed.incrementAndGet();
+            issueNext();
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            level.failed.incrementAndGet();
+            issueNext();
+        }
+    }
+
+    /**
+     * Throughput and latency measured at one concurrency level.
+     */
+    public static class Result {
+        final int concurrency;
+        final long completed;
+        final long failed;
+        final long elapsedNanos;
+        final Histogram histogram; // end-to-end latencies in microseconds
+
+        Result(int concurrency, long completed, long failed, long elapsedNanos, Histogram histogram) {
+            this.concurrency = concurrency;
+            this.completed = completed;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.histogram = histogram;
+        }
+
+        public double getThroughput() {
+            return completed / (elapsedNanos / 1.0E9);
+        }
+
+        public long getLatencyAtPercentile(double percentile) {
+            return histogram.getValueAtPercentile(percentile);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import com.datastax.driver.core.*;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the keys of concurrent multigets (single-flight): a key already being fetched by an in-flight multiget
+ * is not requested again, the new multiget waits for the pending read of that key instead. Only the remaining keys
+ * are sent, in a single query; a multiget whose keys are all in flight sends nothing.
+ * <p/>
+ * The queries select the key column along with the value, so that rows can be handed to every multiget waiting for
+ * them. They are {@link RoutedStatement}s, ignored by the trackers: multigets are reported as a whole once all their
+ * keys are available, with a latency measured from their submission.
+ */
+public class CoalescingMultiGet {
+    private final Session session;
+    private final String table;
+    private final Set<String> fields;
+    private final List<LatencyTracker> trackers;
+    private final ConcurrentMap<String, SettableFuture<Row>> inFlight = new ConcurrentHashMap<String, SettableFuture<Row>>();
+    private final AtomicLong requestedKeys = new AtomicLong();
+    private final AtomicLong sentKeys = new AtomicLong();
+    private final AtomicLong multiGets = new AtomicLong();
+    private final AtomicLong coalescedMultiGets = new AtomicLong();
+
+    private static final Function<List<Row>, List<Row>> SKIP_MISSING = new Function<List<Row>, List<Row>>() {
+        @Override
+        public List<Row> apply(List<Row> rows) {
+            List<Row> found = new ArrayList<Row>(rows.size());
+            for (Row row : rows) {
+                if (row != null)
+                    found.add(row);
+            }
+            return found;
+        }
+    };
+
+    /**
+     * Creates a new instance.
+     *
+     * @param session  the session to execute with.
+     * @param table    the table to read from.
+     * @param field    the column to read.
+     * @param trackers the trackers completed multigets are reported to.
+     */
+    public CoalescingMultiGet(Session session, String table, String field, List<LatencyTracker> trackers) {
+        this.session = session;
+        this.table = table;
+        this.fields = new HashSet<String>(Arrays.asList("y_id", field));
+        this.trackers = trackers;
+    }
+
+    /**
+     * Executes a multiget.
+     *
+     * @param statement the equivalent multiget, only used to report the logical operation to the trackers.
+     * @param keys      the keys to read.
+     * @return a future on the rows found.
+     */
+    public ListenableFuture<List<Row>> execute(final Statement statement, Collection<String> keys) {
+        final long start = System.nanoTime();
+        List<ListenableFuture<Row>> rows = new ArrayList<ListenableFuture<Row>>(keys.size());
+        final Map<String, SettableFuture<Row>> owned = new HashMap<String, SettableFuture<Row>>();
+        for (String key : keys) {
+            SettableFuture<Row> row = SettableFuture.create();
+            SettableFuture<Row> pending = inFlight.putIfAbsent(key, row);
+            if (pending == null) {
+                owned.put(key, row);
+                rows.add(row);
+            } else {
+                rows.add(pending);
+            }
+        }
+        multiGets.incrementAndGet();
+        requestedKeys.addAndGet(keys.size());
+        sentKeys.addAndGet(owned.size());
+        if (owned.isEmpty())
+            coalescedMultiGets.incrementAndGet();
+        else
+            fetch(owned);
+
+        ListenableFuture<List<Row>> result = Futures.transform(Futures.allAsList(rows), SKIP_MISSING);
+        Futures.addCallback(result, new FutureCallback<List<Row>>() {
+            @Override
+            public void onSuccess(List<Row> found) {
+                report(statement, null, System.nanoTime() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                report(statement, throwable instanceof Exception ? (Exception) throwable : null,
+                        System.nanoTime() - start);
+            }
+        });
+        return result;
+    }
+
+    private void fetch(final Map<String, SettableFuture<Row>> owned) {
+        Statement query = AsyncClient.generateMultiGet(table, owned.keySet(), fields);
+        Futures.addCallback(session.executeAsync(new RoutedStatement(query, null)), new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rs) {
+                Map<String, Row> found = new HashMap<String, Row>();
+                for (Row row : rs)
+                    found.put(row.getString("y_id"), row);
+                for (Map.Entry<String, SettableFuture<Row>> entry : owned.entrySet()) {
+                    // Later multigets asking for this key will have to read it again
+                    inFlight.remove(entry.getKey(), entry.getValue());
+                    entry.getValue().set(found.get(entry.getKey()));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                for (Map.Entry<String, SettableFuture<Row>> entry : owned.entrySet()) {
+                    inFlight.remove(entry.getKey(), entry.getValue());
+                    entry.getValue().setException(throwable);
+                }
+            }
+        });
+    }
+
+    private void report(Statement statement, Exception exception, long latencyNanos) {
+        for (LatencyTracker tracker : trackers)
+            tracker.update(null, statement, exception, latencyNanos);
+    }
+
+    /**
+     * Returns the fraction of the requested keys that were served by another multiget's read.
+     */
+    public double getDedupRatio() {
+        long requested = requestedKeys.get();
+        return requested == 0 ? 0 : (requested - sentKeys.get()) / (double) requested;
+    }
+
+    public long getRequestedKeys() {
+        return requestedKeys.get();
+    }
+
+    public long getSentKeys() {
+        return sentKeys.get();
+    }
+
+    /**
+     * Returns the number of multigets whose keys were all being read already, and which sent no query.
+     */
+    public long getCoalescedMultiGets() {
+        return coalescedMultiGets.get();
+    }
+}
@@ -0,0 +1,136 @@
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the outcome of every request issued during a run, from the futures returned by executeAsync.
+ * <p/>
+ * The in-flight counter starts at one on behalf of the senders; {@link #close()} releases it once all requests have
+ * been issued, so the completion latch opens exactly when the last outstanding response arrives, and not before the
+ * senders are done.
+ */
+public class CompletionTracker {
+    private final AtomicLong inFlight = new AtomicLong(1);
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean windowBounded; // set after windowEndNanos, and read before it
+    private volatile long windowEndNanos;
+    private volatile long lastCompletionNanos;
+
+    private final FutureCallback<Object> callback = new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+            long now = System.nanoTime();
+            if (windowBounded && now - windowEndNanos > 0)
+                late.incrementAndGet();
+            else
+                succeeded.incrementAndGet();
+            completed(now);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            failed.incrementAndGet();
+            if (throwable instanceof OperationTimedOutException
+                    || throwable instanceof ReadTimeoutException
+                    || throwable instanceof WriteTimeoutException)
+                timedOut.incrementAndGet();
+            completed(System.nanoTime());
+        }
+    };
+
+    /**
+     * Starts tracking the given request.
+     */
+    public void track(ListenableFuture<?> future) {
+        issued.incrementAndGet();
+        inFlight.incrementAndGet();
+        Futures.addCallback(future, callback);
+    }
+
+    /**
+     * Signals that no more requests will be issued.
+     */
+    public void close() {
+        release();
+    }
+
+    /**
+     * Successful responses received after the given System.nanoTime() value are counted as late rather than as
+     * successes (time-bounded runs).
+     */
+    public void setWindowEnd(long windowEndNanos) {
+        this.windowEndNanos = windowEndNanos;
+        this.windowBounded = true;
+    }
+
+    /**
+     * Waits until every issued request completed, or until the timeout elapsed.
+     *
+     * @return true if all requests completed.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    private void completed(long now) {
+        lastCompletionNanos = now;
+        release();
+    }
+
+    private void release() {
+        if (inFlight.decrementAndGet() == 0)
+            done.countDown();
+    }
+
+    public long getIssued() {
+        return issued.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * Returns the number of failed requests, timeouts included.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of requests that failed with a client-side or server-side timeout.
+     */
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * Returns the number of successful responses received after the end of the measurement window.
+     */
+    public long getLate() {
+        return late.get();
+    }
+
+    /**
+     * Returns the number of requests still waiting for a response.
+     */
+    public long getPending() {
+        return issued.get() - succeeded.get() - failed.get() - late.get();
+    }
+
+    public long getLastCompletionNanos() {
+        return lastCompletionNanos;
+    }
+}
@@ -4,6 +4,7 @@ import com.datastax.driver.core.LatencyTracker;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.exceptions.*;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.HdrHistogram.Histogram;
@@ -13,11 +14,21 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.concurrent.TimeUnit.*;
 
 /**
+ * Records request latencies, both raw and corrected for coordinated omission from the intended start times set by
+ * the senders.
+ * <p/>
+ * Intended starts are looked up by statement instance. They follow the statement through driver retries and
+ * speculative executions, which reuse the instance, but not through wrapping: the sub-statements client-side modes
+ * build from a multiget (see {@link RoutedStatement}) have none, which is why their issuers report each operation
+ * as a whole with the original statement.
+ * <p/>
  * Created by reda on 12/09/16.
  */
 
@@ -29,15 +40,34 @@ public class CustomPercentileTracker implements LatencyTracker {
     private final int numberOfSignificantValueDigits;
     private final int minRecordedValues;
     private Histogram finalHistogram = null;
+    private Histogram finalCorrectedHistogram = null;
 
     private volatile Cluster cluster;
 
-    private int opsCounter=0;
+    private final AtomicInteger opsCounter = new AtomicInteger();
     private long lastUpdateTS;
 
+    // Completions after this System.nanoTime() value are counted but not recorded (time-bounded runs)
+    private volatile boolean windowBounded; // set after windowEndNanos, and read before it
+    private volatile long windowEndNanos;
+    private final AtomicLong lateCompletions = new AtomicLong();
+
     // The "live" recorders: this is where we store the latencies received from the cluster
     private final ConcurrentMap<Object, Recorder> recorders;
 
+    // Same as above, but measured from each operation's intended start time (coordinated-omission corrected)
+    private final ConcurrentMap<Object, Recorder> correctedRecorders;
+
+    // Intended start times (System.nanoTime()) of in-flight statements, as set by the pacing schedule
+    private final ConcurrentMap<Statement, Long> intendedStarts;
+
+    // Per-phase recorders (raw and corrected), only used when the run follows a phased schedule
+    private volatile RunSchedule schedule;
+    private final ConcurrentMap<RunSchedule.Phase, Recorder> phaseRecorders;
+    private final ConcurrentMap<RunSchedule.Phase, Recorder> phaseCorrectedRecorders;
+    private final ConcurrentMap<RunSchedule.Phase, Histogram> finalPhaseHistograms;
+    private final ConcurrentMap<RunSchedule.Phase, Histogram> finalPhaseCorrectedHistograms;
+
     /**
      * Builds a new instance.
      *
@@ -52,6 +82,63 @@ public class CustomPercentileTracker implements LatencyTracker {
         this.numberOfSignificantValueDigits = numberOfSignificantValueDigits;
         this.minRecordedValues = minRecordedValues;
         this.recorders = new ConcurrentHashMap<Object, Recorder>();
+        this.correctedRecorders = new ConcurrentHashMap<Object, Recorder>();
+        this.intendedStarts = new ConcurrentHashMap<Statement, Long>();
+        this.phaseRecorders = new ConcurrentHashMap<RunSchedule.Phase, Recorder>();
+        this.phaseCorrectedRecorders = new ConcurrentHashMap<RunSchedule.Phase, Recorder>();
+        this.finalPhaseHistograms = new ConcurrentHashMap<RunSchedule.Phase, Histogram>();
+        this.finalPhaseCorrectedHistograms = new ConcurrentHashMap<RunSchedule.Phase, Histogram>();
+        for (RunSchedule.Phase phase : RunSchedule.Phase.values()) {
+            phaseRecorders.put(phase, new Recorder(highestTrackableLatencyMillis, numberOfSignificantValueDigits));
+            phaseCorrectedRecorders.put(phase, new Recorder(highestTrackableLatencyMillis, numberOfSignificantValueDigits));
+        }
+    }
+
+    /**
+     * Additionally records latencies per phase of the given schedule. Operations are assigned to the phase their
+     * intended start time (or, if unknown, their actual start time) falls into.
+     */
+    public void setSchedule(RunSchedule schedule) {
+        this.schedule = schedule;
+    }
+
+    /**
+     * Records the time at which a statement was supposed to be sent according to the pacing schedule. When its
+     * latency is reported, the time elapsed since that intended start is recorded in the corrected histogram, so
+     * that delays caused by a stalled sender (coordinated omission) show up in the results.
+     *
+     * @param statement          the statement about to be executed.
+     * @param intendedStartNanos the intended send time, as a System.nanoTime() value.
+     */
+    public void setIntendedStart(Statement statement, long intendedStartNanos) {
+        intendedStarts.put(statement, intendedStartNanos);
+    }
+
+    /**
+     * Forgets the intended start of a statement. Entries are not removed when latencies are reported, since every
+     * execution of a statement is reported, so issuers clear them once the operation is over, whether or not it
+     * reached the driver.
+     */
+    public void clearIntendedStart(Statement statement) {
+        intendedStarts.remove(statement);
+    }
+
+    /**
+     * Forgets the intended start of a statement once the given operation completed. The driver and the client-side
+     * modes report latencies before completing the operation, so the last report is still corrected.
+     */
+    public void clearIntendedStartOnCompletion(final Statement statement, ListenableFuture<?> operation) {
+        Futures.addCallback(operation, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                clearIntendedStart(statement);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                clearIntendedStart(statement);
+            }
+        });
     }
 
     /**
@@ -74,12 +161,32 @@ public class CustomPercentileTracker implements LatencyTracker {
     @Override
     public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
         this.lastUpdateTS = System.nanoTime();
+        Long intendedStart = intendedStarts.get(statement);
+        if (windowBounded && this.lastUpdateTS - windowEndNanos > 0) {
+            lateCompletions.incrementAndGet();
+            return;
+        }
         if (!include(host, statement, exception))
             return;
-        this.opsCounter++;
+        this.opsCounter.incrementAndGet();
         long latencyUs = NANOSECONDS.toMicros(newLatencyNanos);
+        // Without an intended start (e.g. unpaced statements), the corrected latency is the raw one
+        long correctedLatencyUs = intendedStart == null ? latencyUs
+                : Math.max(latencyUs, NANOSECONDS.toMicros(this.lastUpdateTS - intendedStart));
+        record(getRecorder(recorders, host, statement, exception), latencyUs);
+        record(getRecorder(correctedRecorders, host, statement, exception), correctedLatencyUs);
+
+        RunSchedule schedule = this.schedule;
+        if (schedule != null) {
+            RunSchedule.Phase phase = schedule.phaseAt(intendedStart != null ? intendedStart
+                    : this.lastUpdateTS - newLatencyNanos);
+            record(phaseRecorders.get(phase), latencyUs);
+            record(phaseCorrectedRecorders.get(phase), correctedLatencyUs);
+        }
+    }
+
+    private void record(Recorder recorder, long latencyUs) {
         try {
-            Recorder recorder = getRecorder(host, statement, exception);
             if (recorder != null)
                 recorder.recordValue(latencyUs);
         } catch (ArrayIndexOutOfBoundsException e) {
@@ -101,12 +208,12 @@ public class CustomPercentileTracker implements LatencyTracker {
     public long getLatencyAtPercentile(Host host, Statement statement, Exception exception, double percentile) {
         checkArgument(percentile >= 0.0 && percentile < 100,
                 "percentile must be between 0.0 and 100 (was %s)", percentile);
-        Histogram histogram = getLastIntervalHistogram(host, statement, exception);
+        Histogram histogram = getLastIntervalHistogram(recorders, host, statement, exception);
 
         if(this.finalHistogram == null)
             this.finalHistogram = histogram;
 
-        if (this.finalHistogram == null || this.finalHistogram.getTotalCount() < opsCounter) {
+        if (this.finalHistogram == null || this.finalHistogram.getTotalCount() < opsCounter.get()) {
             System.out.println("total count " + this.finalHistogram.getTotalCount());
             System.out.println(this.finalHistogram);
             return -1;
@@ -115,9 +222,85 @@ public class CustomPercentileTracker implements LatencyTracker {
         return this.finalHistogram.getValueAtPercentile(percentile);
     }
 
+    /**
+     * Returns the coordinated-omission corrected latency at a given percentile, i.e. measured from each operation's
+     * intended start time rather than from the moment the driver actually sent it.
+     *
+     * @param percentile the percentile (for example, {@code 99.0} for the 99th percentile).
+     * @return the latency (in microseconds) at the given percentile, or a negative value if it's not available yet.
+     * @see #setIntendedStart(Statement, long)
+     */
+    public long getCorrectedLatencyAtPercentile(Host host, Statement statement, Exception exception, double percentile) {
+        checkArgument(percentile >= 0.0 && percentile < 100,
+                "percentile must be between 0.0 and 100 (was %s)", percentile);
+        if(this.finalCorrectedHistogram == null)
+            this.finalCorrectedHistogram = getLastIntervalHistogram(correctedRecorders, host, statement, exception);
+
+        if (this.finalCorrectedHistogram == null || this.finalCorrectedHistogram.getTotalCount() < opsCounter.get())
+            return -1;
+
+        return this.finalCorrectedHistogram.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Returns the latency at a given percentile for the operations of one phase of the schedule.
+     *
+     * @param phase      the phase.
+     * @param corrected  whether to use the coordinated-omission corrected latencies.
+     * @param percentile the percentile (for example, {@code 99.0} for the 99th percentile).
+     * @return the latency (in microseconds) at the given percentile, or a negative value if the phase has no data.
+     * @see #setSchedule(RunSchedule)
+     */
+    public long getPhaseLatencyAtPercentile(RunSchedule.Phase phase, boolean corrected, double percentile) {
+        checkArgument(percentile >= 0.0 && percentile < 100,
+                "percentile must be between 0.0 and 100 (was %s)", percentile);
+        Histogram histogram = getFinalPhaseHistogram(phase, corrected);
+        if (histogram.getTotalCount() == 0)
+            return -1;
+        return histogram.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Returns the number of operations recorded for one phase of the schedule.
+     */
+    public long getPhaseOpsCount(RunSchedule.Phase phase) {
+        return getFinalPhaseHistogram(phase, false).getTotalCount();
+    }
+
+    private Histogram getFinalPhaseHistogram(RunSchedule.Phase phase, boolean corrected) {
+        ConcurrentMap<RunSchedule.Phase, Histogram> finalHistograms = corrected ? finalPhaseCorrectedHistograms
+                : finalPhaseHistograms;
+        Histogram histogram = finalHistograms.get(phase);
+        if (histogram == null) {
+            // getIntervalHistogram() resets the recorder, so keep the first snapshot
+            histogram = (corrected ? phaseCorrectedRecorders : phaseRecorders).get(phase).getIntervalHistogram();
+            Histogram old = finalHistograms.putIfAbsent(phase, histogram);
+            if (old != null)
+                histogram = old;
+        }
+        return histogram;
+    }
+
+    /**
+     * Restricts the recorded measurements to completions that happen before the given System.nanoTime() value.
+     * Later completions (e.g. while draining in-flight requests after the deadline of a time-bounded run) are only
+     * counted, see {@link #getLateCompletions()}.
+     */
+    public void setWindowEnd(long windowEndNanos) {
+        this.windowEndNanos = windowEndNanos;
+        this.windowBounded = true;
+    }
+
+    /**
+     * Returns the number of responses received after the end of the measurement window.
+     */
+    public long getLateCompletions() {
+        return lateCompletions.get();
+    }
+
     public boolean isRunComplete()
     {
-        if(this.opCount + 1 == this.opsCounter)
+        if(this.opCount + 1 == this.opsCounter.get())
             return true;
         else
             return false;
@@ -130,10 +313,11 @@ public class CustomPercentileTracker implements LatencyTracker {
 
     public int getOpsCount()
     {
-        return this.opsCounter-1;
+        return this.opsCounter.get()-1;
     }
 
-    private Recorder getRecorder(Host host, Statement statement, Exception exception) {
+    private Recorder getRecorder(ConcurrentMap<Object, Recorder> recorders, Host host, Statement statement,
+                                 Exception exception) {
         Object key = computeKey(host, statement, exception);
         if (key == null)
             return null;
@@ -153,7 +337,8 @@ public class CustomPercentileTracker implements LatencyTracker {
     /**
      * @return null if no histogram is available yet (no entries recorded, or not for long enough)
      */
-    private Histogram getLastIntervalHistogram(Host host, Statement statement, Exception exception) {
+    private Histogram getLastIntervalHistogram(ConcurrentMap<Object, Recorder> recorders, Host host,
+                                               Statement statement, Exception exception) {
         Object key = computeKey(host, statement, exception);
 
         if (key == null) {
@@ -161,6 +346,8 @@ public class CustomPercentileTracker implements LatencyTracker {
         }
 
         Recorder recorder = recorders.get(key);
+        if (recorder == null)
+            return null;
         Histogram histogram = recorder.getIntervalHistogram();
 
         return histogram;
@@ -208,6 +395,9 @@ public class CustomPercentileTracker implements LatencyTracker {
      * @return whether the measurement should be included.
      */
     protected boolean include(Host host, Statement statement, Exception exception) {
+        // parts of a client-routed operation, which its issuer reports as a whole
+        if (statement instanceof RoutedStatement)
+            return false;
         // query was successful: always consider
         if (exception == null)
             return true;
@@ -0,0 +1,78 @@
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+
+import java.util.*;
+
+/**
+ * Load balancing policy honouring the routing of {@link RoutedStatement}s on top of its child policy: the first host
+ * of the plan of a routed statement is recorded in it, and its excluded host is removed from the plan. This lets
+ * {@link HedgedMultiGet} send a hedge to another coordinator than the one the original request went to.
+ * <p/>
+ * Other statements get the plan of the child policy unchanged.
+ */
+public class HedgeRoutingPolicy implements ChainableLoadBalancingPolicy {
+    private final LoadBalancingPolicy childPolicy;
+
+    public HedgeRoutingPolicy(LoadBalancingPolicy childPolicy) {
+        this.childPolicy = childPolicy;
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        childPolicy.init(cluster, hosts);
+    }
+
+    @Override
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        Iterator<Host> childPlan = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        if (!(statement instanceof RoutedStatement))
+            return childPlan;
+        RoutedStatement routed = (RoutedStatement) statement;
+        Host excluded = routed.getExcludedHost();
+        List<Host> plan = new ArrayList<Host>();
+        while (childPlan.hasNext()) {
+            Host host = childPlan.next();
+            if (!host.equals(excluded))
+                plan.add(host);
+        }
+        if (!plan.isEmpty())
+            routed.setCoordinator(plan.get(0));
+        return plan.iterator();
+    }
+
+    @Override
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    @Override
+    public void onUp(Host host) {
+        childPolicy.onUp(host);
+    }
+
+    @Override
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+    }
+
+    @Override
+    public void onRemove(Host host) {
+        childPolicy.onRemove(host);
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+}
@@ -0,0 +1,272 @@
+import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Executes multigets with hedging: if a multiget has not completed after a delay equal to a given percentile of the
+ * recent latencies of multigets of the same size, a duplicate is sent to another coordinator: the original request's
+ * coordinator is excluded from the hedge's query plan by {@link HedgeRoutingPolicy}, which the cluster must use. The
+ * first response wins. A losing hedge is cancelled, but a losing original request is left to complete: the delay
+ * percentile is computed from the latencies of the original requests, which hedges winning would otherwise hide and
+ * drift down. A multiget whose coordinator is not known yet is not hedged.
+ * <p/>
+ * The extra load is capped by a budget: hedges are paid with tokens, of which every multiget earns a fraction (the
+ * budget) up to a small burst. Multigets are reported to the latency trackers once they complete, with a latency
+ * measured from the first send; the requests themselves are {@link RoutedStatement}s, ignored by the trackers.
+ */
+public class HedgedMultiGet {
+    private static final long REFRESH_NANOS = 1000000000L; // how often the delay percentile is recomputed
+    private static final int MIN_RECORDED_VALUES = 100;
+    private static final double MAX_TOKENS = 10;
+
+    private final Session session;
+    private final double percentile;
+    private final double budget;
+    private final List<LatencyTracker> trackers;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentMap<Integer, Delay> delays = new ConcurrentHashMap<Integer, Delay>();
+    private final ConcurrentMap<Integer, Stats> stats = new ConcurrentHashMap<Integer, Stats>();
+    private double tokens;
+
+    /**
+     * Live latency percentile of the multigets of one size.
+     */
+    private static class Delay {
+        final Recorder recorder = new Recorder(2);
+        Histogram last;
+        long lastRefreshNanos = System.nanoTime();
+
+        synchronized long getNanos(long now, double percentile) {
+            if (now - lastRefreshNanos > REFRESH_NANOS) {
+                Histogram interval = recorder.getIntervalHistogram();
+                // Keep the previous interval if the last one is too small to be meaningful
+                if (interval.getTotalCount() >= MIN_RECORDED_VALUES)
+                    last = interval;
+                lastRefreshNanos = now;
+            }
+            return last == null ? -1 : MICROSECONDS.toNanos(last.getValueAtPercentile(percentile));
+        }
+    }
+
+    /**
+     * Hedging counters of the multigets of one size.
+     */
+    public static class Stats {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong hedged = new AtomicLong();
+        final AtomicLong won = new AtomicLong();
+
+        /**
+         * Returns the fraction of multigets that were hedged.
+         */
+        public double getHedgeRate() {
+            long count = requests.get();
+            return count == 0 ? 0 : hedged.get() / (double) count;
+        }
+
+        /**
+         * Returns the fraction of hedges that completed before the original request.
+         */
+        public double getWinRate() {
+            long count = hedged.get();
+            return count == 0 ? 0 : won.get() / (double) count;
+        }
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param session    the session to execute with.
+     * @param percentile the latency percentile after which a multiget is hedged (for example, {@code 95.0}).
+     * @param budget     the maximum fraction of multigets that may be hedged (for example, {@code 0.05}).
+     * @param trackers   the trackers completed multigets are reported to.
+     */
+    public HedgedMultiGet(Session session, double percentile, double budget, List<LatencyTracker> trackers) {
+        this.session = session;
+        this.percentile = percentile;
+        this.budget = budget;
+        this.trackers = trackers;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "hedging-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // Most hedge timeouts are cancelled by a response, drop them at once instead of when they would have run
+        executor.setRemoveOnCancelPolicy(true);
+        this.timer = executor;
+    }
+
+    /**
+     * Executes a multiget.
+     *
+     * @param statement the multiget.
+     * @param batchSize its number of keys.
+     * @return a future on the result of whichever request completed first.
+     */
+    public ListenableFuture<ResultSet> execute(Statement statement, int batchSize) {
+        Execution execution = new Execution(statement, getOrCreateStats(batchSize), getDelay(batchSize));
+        execution.start(earnToken());
+        return execution.result;
+    }
+
+    /**
+     * A multiget and its requests: the first one to complete successfully sets the result, reports the multiget and
+     * cancels the hedge if it lost. A failure only decides the outcome if no other request is pending.
+     */
+    private class Execution {
+        final Statement statement;
+        final Stats batchStats;
+        final Delay delay;
+        final long start = System.nanoTime();
+        final SettableFuture<ResultSet> result = SettableFuture.create();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger pending = new AtomicInteger();
+        volatile RoutedStatement primaryStatement;
+        volatile ResultSetFuture hedge;
+        volatile ScheduledFuture<?> hedgeTask;
+
+        Execution(Statement statement, Stats batchStats, Delay delay) {
+            this.statement = statement;
+            this.batchStats = batchStats;
+            this.delay = delay;
+        }
+
+        void start(boolean canHedge) {
+            batchStats.requests.incrementAndGet();
+            long delayNanos = delay.getNanos(start, percentile);
+            primaryStatement = new RoutedStatement(statement, null);
+            send(primaryStatement, false);
+            if (!canHedge || delayNanos < 0)
+                return;
+            hedgeTask = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Host coordinator = primaryStatement.getCoordinator();
+                    if (done.get() || coordinator == null || !spendToken())
+                        return;
+                    batchStats.hedged.incrementAndGet();
+                    hedge = send(new RoutedStatement(statement, null, coordinator), true);
+                    if (done.get())
+                        hedge.cancel(true);
+                }
+            }, delayNanos, NANOSECONDS);
+        }
+
+        private ResultSetFuture send(RoutedStatement routed, final boolean isHedge) {
+            pending.incrementAndGet();
+            ResultSetFuture future = session.executeAsync(routed);
+            Futures.addCallback(future, new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rs) {
+                    pending.decrementAndGet();
+                    if (!isHedge)
+                        delay.recorder.recordValue(NANOSECONDS.toMicros(System.nanoTime() - start));
+                    completed(isHedge, rs, null);
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    // A cancelled hedge, or a failure while the other request may still succeed
+                    if (pending.decrementAndGet() > 0 || throwable instanceof CancellationException)
+                        return;
+                    completed(isHedge, null, throwable);
+                }
+            });
+            return future;
+        }
+
+        private void completed(boolean isHedge, ResultSet rs, Throwable failure) {
+            if (!done.compareAndSet(false, true))
+                return;
+            ScheduledFuture<?> task = hedgeTask;
+            if (task != null)
+                task.cancel(false);
+            // The original request still runs after losing, for its latency to feed the delay percentile
+            ResultSetFuture loser = hedge;
+            if (!isHedge && loser != null)
+                loser.cancel(true);
+
+            long latencyNanos = System.nanoTime() - start;
+            Exception exception = failure instanceof Exception ? (Exception) failure : null;
+            for (LatencyTracker tracker : trackers)
+                tracker.update(null, statement, exception, latencyNanos);
+            if (failure != null) {
+                result.setException(failure);
+                return;
+            }
+            if (isHedge)
+                batchStats.won.incrementAndGet();
+            result.set(rs);
+        }
+    }
+
+    private synchronized boolean earnToken() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+        return tokens >= 1;
+    }
+
+    private synchronized boolean spendToken() {
+        if (tokens < 1)
+            return false;
+        tokens -= 1;
+        return true;
+    }
+
+    private Delay getDelay(int batchSize) {
+        Delay delay = delays.get(batchSize);
+        if (delay == null) {
+            delay = new Delay();
+            Delay old = delays.putIfAbsent(batchSize, delay);
+            if (old != null)
+                delay = old;
+        }
+        return delay;
+    }
+
+    private Stats getOrCreateStats(int batchSize) {
+        Stats batchStats = stats.get(batchSize);
+        if (batchStats == null) {
+            batchStats = new Stats();
+            Stats old = stats.putIfAbsent(batchSize, batchStats);
+            if (old != null)
+                batchStats = old;
+        }
+        return batchStats;
+    }
+
+    /**
+     * Returns the hedging counters of the multigets of the given size, or null if none was executed.
+     */
+    public Stats getStats(Object batchSize) {
+        return stats.get(batchSize);
+    }
+
+    /**
+     * Returns the hedging counters of all multigets.
+     */
+    public Stats getTotalStats() {
+        Stats total = new Stats();
+        for (Stats batchStats : stats.values()) {
+            total.requests.addAndGet(batchStats.requests.get());
+            total.hedged.addAndGet(batchStats.hedged.get());
+            total.won.addAndGet(batchStats.won.get());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,285 @@
+import misc.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Key names ({@code "user" + id}) of the rows [0, size), and their serialized form (the bytes of the varchar
+ * partition key, used as routing keys), so that building a multiget does not format the same keys over and over.
+ * <p/>
+ * Up to a given number of rows both forms are precomputed at startup into dense arrays indexed by key id. Above it
+ * (the 250M-row disk scenario would need tens of GB of heap) the table is compact: the serialized keys are packed
+ * back-to-back into off-heap segments, with the offset of every {@link #BLOCK_KEYS}th key as the index, and encoded
+ * keys are slices of these segments. Names are decoded from the segments. The mapping from trace ids to key ids
+ * ({@code hash(id) % rows}) is memoized in both cases.
+ * <p/>
+ * Instances are thread-safe and meant to be shared by all sending threads.
+ */
+public class KeyTable {
+    public static final String PREFIX = "user";
+
+    private static final int INITIAL_MEMO_SIZE = 1 << 16;
+    private static final int MAX_MEMO_SIZE = 1 << 22; // larger trace ids are hashed on every lookup
+    private static final int BLOCK_SHIFT = 6;
+    private static final int BLOCK_KEYS = 1 << BLOCK_SHIFT;
+    private static final int SEGMENT_SHIFT = 30;
+    private static final int SEGMENT_BYTES = 1 << SEGMENT_SHIFT;
+    private static final int MAX_KEY_BYTES = PREFIX.length() + 11; // sign and 10 digits
+
+    private final int rows;
+    private final String[] names; // null in compact mode
+    private final ByteBuffer[] encoded; // null in compact mode
+    private final ByteBuffer[] segments; // null in dense mode
+    private final long[] blockOffsets; // segment << SEGMENT_SHIFT | offset of the first key of each block
+    private volatile int[] traceMemo; // key id + 1 for every trace id seen, 0 if not computed yet
+
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_KEY_BYTES];
+        }
+    };
+
+    /**
+     * Creates a table.
+     *
+     * @param rows       the number of rows, i.e. of trace key ids.
+     * @param denseLimit the maximum number of keys precomputed into on-heap arrays; larger tables are compact.
+     */
+    public KeyTable(int rows, int denseLimit) {
+        this.rows = rows;
+        this.traceMemo = new int[INITIAL_MEMO_SIZE];
+        // Synthetic generators may return ids in [0, rows] (inclusive), hence the extra slot
+        int size = rows + 1;
+        if (size > denseLimit) {
+            names = null;
+            encoded = null;
+            blockOffsets = new long[(int) (((long) size + BLOCK_KEYS - 1) >> BLOCK_SHIFT)];
+            segments = pack(size);
+            return;
+        }
+        segments = null;
+        blockOffsets = null;
+        names = new String[size];
+        encoded = new ByteBuffer[size];
+        byte[] bytes = scratch.get();
+        for (int id = 0; id < size; id++) {
+            int length = format(id, bytes);
+            names[id] = new String(bytes, 0, length, StandardCharsets.US_ASCII);
+            encoded[id] = ByteBuffer.wrap(Arrays.copyOf(bytes, length)).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Packs the serialized keys [0, size) into off-heap segments and fills the block index. A block of keys never
+     * straddles two segments.
+     */
+    private ByteBuffer[] pack(int size) {
+        List<ByteBuffer> packed = new ArrayList<ByteBuffer>();
+        byte[] bytes = scratch.get();
+        ByteBuffer segment = null;
+        for (int id = 0; id < size; id++) {
+            if ((id & (BLOCK_KEYS - 1)) == 0) {
+                if (segment == null || segment.remaining() < packedBytes(id, Math.min(size, id + BLOCK_KEYS))) {
+                    if (segment != null)
+                        packed.set(packed.size() - 1, shrink(segment));
+                    segment = ByteBuffer.allocateDirect((int) Math.min(SEGMENT_BYTES, packedBytes(id, size)));
+                    packed.add(segment);
+                }
+                blockOffsets[id >> BLOCK_SHIFT] = (long) (packed.size() - 1) << SEGMENT_SHIFT | segment.position();
+            }
+            segment.put(bytes, 0, format(id, bytes));
+        }
+        packed.set(packed.size() - 1, shrink(segment));
+        return packed.toArray(new ByteBuffer[packed.size()]);
+    }
+
+    /**
+     * Returns the number of bytes of the serialized keys [from, to).
+     */
+    private static long packedBytes(int from, int to) {
+        long bytes = 0;
+        long start = from;
+        while (start < to) {
+            int length = keyLength((int) start);
+            long end = Math.min(to, pow10(length - PREFIX.length()));
+            bytes += (end - start) * length;
+            start = end;
+        }
+        return bytes;
+    }
+
+    private static long pow10(int exponent) {
+        long value = 1;
+        for (int i = 0; i < exponent; i++)
+            value *= 10;
+        return value;
+    }
+
+    /**
+     * Returns a read-only view of the written part of a segment, so the encoded keys cannot be modified.
+     */
+    private static ByteBuffer shrink(ByteBuffer segment) {
+        ByteBuffer view = segment.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the name of the key with the given id.
+     */
+    public String name(int id) {
+        if (names != null && id >= 0 && id < names.length)
+            return names[id];
+        byte[] bytes = scratch.get();
+        int length;
+        if (segments != null && id >= 0 && id <= rows) {
+            ByteBuffer segment = segments[segmentOf(id)];
+            int offset = offsetOf(id);
+            length = keyLength(id);
+            for (int i = 0; i < length; i++)
+                bytes[i] = segment.get(offset + i);
+        } else {
+            length = format(id, bytes);
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the serialized form of the key with the given id. The buffer must not be modified, but its position
+     * may be changed freely.
+     */
+    public ByteBuffer encoded(int id) {
+        if (encoded != null && id >= 0 && id < encoded.length)
+            return encoded[id].duplicate();
+        if (segments != null && id >= 0 && id <= rows) {
+            ByteBuffer slice = segments[segmentOf(id)].duplicate();
+            int offset = offsetOf(id);
+            slice.limit(offset + keyLength(id)).position(offset);
+            return slice.slice();
+        }
+        byte[] bytes = scratch.get();
+        return ByteBuffer.wrap(Arrays.copyOf(bytes, format(id, bytes)));
+    }
+
+    /**
+     * Returns the serialized form of a key name.
+     */
+    public ByteBuffer encoded(String name) {
+        int id = parseId(name);
+        return id >= 0 ? encoded(id) : ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the id of the key a trace id maps to.
+     */
+    public int traceKey(int traceId) {
+        int[] memo = traceMemo;
+        if (traceId >= 0 && traceId < memo.length && memo[traceId] != 0)
+            return memo[traceId] - 1;
+        int key = (int) (Utils.hash(traceId) % rows);
+        if (traceId >= 0 && traceId < MAX_MEMO_SIZE) {
+            if (traceId >= memo.length)
+                memo = growMemo(traceId);
+            // Racing writers store the same value, and a write to a replaced array is only a lost memo
+            memo[traceId] = key + 1;
+        }
+        return key;
+    }
+
+    private synchronized int[] growMemo(int traceId) {
+        int[] memo = traceMemo;
+        if (traceId >= memo.length) {
+            int size = memo.length;
+            while (size <= traceId)
+                size <<= 1;
+            memo = Arrays.copyOf(memo, Math.min(size, MAX_MEMO_SIZE));
+            traceMemo = memo;
+        }
+        return memo;
+    }
+
+    public boolean isDense() {
+        return names != null;
+    }
+
+    /**
+     * Returns the number of bytes held off-heap by a compact table, 0 for a dense one.
+     */
+    public long getOffHeapBytes() {
+        long bytes = 0;
+        if (segments != null) {
+            for (ByteBuffer segment : segments)
+                bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    private int segmentOf(int id) {
+        return (int) (blockOffsets[id >> BLOCK_SHIFT] >>> SEGMENT_SHIFT);
+    }
+
+    /**
+     * Returns the offset of a key in its segment: the offset of its block, plus the lengths of the keys before it in
+     * the block. Keys of a block all have the same length, except in the blocks where the number of digits changes.
+     */
+    private int offsetOf(int id) {
+        int blockStart = id & ~(BLOCK_KEYS - 1);
+        int offset = (int) (blockOffsets[id >> BLOCK_SHIFT] & (SEGMENT_BYTES - 1));
+        int length = keyLength(id);
+        if (keyLength(blockStart) == length)
+            return offset + (id - blockStart) * length;
+        for (int i = blockStart; i < id; i++)
+            offset += keyLength(i);
+        return offset;
+    }
+
+    private static int keyLength(int id) {
+        int digits = 1;
+        for (long bound = 10; bound <= id; bound *= 10)
+            digits++;
+        return PREFIX.length() + digits;
+    }
+
+    /**
+     * Writes the name of a key as ASCII bytes, and returns its length.
+     */
+    private static int format(int id, byte[] bytes) {
+        if (id < 0) {
+            byte[] name = (PREFIX + id).getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(name, 0, bytes, 0, name.length);
+            return name.length;
+        }
+        int length = keyLength(id);
+        for (int i = 0; i < PREFIX.length(); i++)
+            bytes[i] = (byte) PREFIX.charAt(i);
+        int value = id;
+        for (int i = length - 1; i >= PREFIX.length(); i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the id of a key name, or -1 if it is not of the form PREFIX + id.
+     */
+    private static int parseId(String name) {
+        int length = name.length();
+        if (!name.startsWith(PREFIX) || length == PREFIX.length() || length > PREFIX.length() + 9)
+            return -1;
+        if (name.charAt(PREFIX.length()) == '0' && length > PREFIX.length() + 1)
+            return -1; // leading zeros, not the name of a key id
+        int id = 0;
+        for (int i = PREFIX.length(); i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+}
@@ -0,0 +1,287 @@
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load balancing policy ranking the hosts of its child policy's query plan by a score combining their recent latency
+ * and their load, in the spirit of C3 (Suresh et al., NSDI'15):
+ * <pre>
+ *   score = latency * (1 + inFlight^3)
+ * </pre>
+ * where latency is an exponentially decaying average of the latencies reported by the driver for that host, and
+ * inFlight the number of requests the session currently has outstanding on it (the cubic term strongly penalizes
+ * hosts building up a queue, e.g. a node busy compacting). Replicas of the statement's routing key, if any, are always
+ * tried before the other hosts.
+ * <p/>
+ * To avoid herding onto the host that currently looks fastest, each host may only be picked first a limited number
+ * of times per {@link #RATE_INTERVAL_NANOS}: twice the number of responses it returned during the previous interval,
+ * and at least {@link #MIN_ALLOWANCE}. Hosts over their allowance are moved after the others.
+ * <p/>
+ * Scores are not computed per query plan: a timer samples the in-flight counts of the session (which allocates a new
+ * state snapshot every time) and refreshes the score of every host each {@link #SAMPLE_NANOS}, and query plans are
+ * ranked from these cached scores.
+ * <p/>
+ * The policy registers itself as a latency tracker of the cluster it is initialized with.
+ */
+public class LatencyRankingPolicy implements ChainableLoadBalancingPolicy, LatencyTracker {
+    private static final long SCALE_NANOS = 100000000L; // decay scale of the latency average (100ms)
+    private static final long RETRY_NANOS = 2000000000L; // a host without measures for that long is probed again
+    private static final long RATE_INTERVAL_NANOS = 10000000L;
+    private static final int MIN_ALLOWANCE = 8;
+    private static final long SAMPLE_NANOS = 1000000L;
+
+    private final LoadBalancingPolicy childPolicy;
+    private final ConcurrentMap<Host, HostStats> stats = new ConcurrentHashMap<Host, HostStats>();
+    private volatile Metadata metadata;
+    private volatile ProtocolVersion protocolVersion;
+    private volatile CodecRegistry codecRegistry;
+    private volatile Session session;
+    private ScheduledExecutorService sampler;
+
+    private static class HostStats {
+        long lastUpdateNanos;
+        double latencyNanos;
+        long routed;
+        long intervalStartNanos;
+        int pickedInInterval;
+        int completedInInterval;
+        int allowance = MIN_ALLOWANCE;
+        volatile double cachedScore; // refreshed by the sampler
+
+        synchronized void add(long now, long newLatencyNanos) {
+            if (lastUpdateNanos == 0) {
+                latencyNanos = newLatencyNanos;
+            } else {
+                double weight = Math.exp(-(double) (now - lastUpdateNanos) / SCALE_NANOS);
+                latencyNanos = weight * latencyNanos + (1 - weight) * newLatencyNanos;
+            }
+            lastUpdateNanos = now;
+            rollInterval(now);
+            completedInInterval++;
+        }
+
+        synchronized double score(long now, int inFlight) {
+            if (lastUpdateNanos == 0 || now - lastUpdateNanos > RETRY_NANOS)
+                return 0;
+            return latencyNanos * (1 + Math.pow(inFlight, 3));
+        }
+
+        synchronized boolean isOverAllowance(long now) {
+            rollInterval(now);
+            return pickedInInterval >= allowance;
+        }
+
+        synchronized void picked(long now) {
+            rollInterval(now);
+            pickedInInterval++;
+            routed++;
+        }
+
+        private void rollInterval(long now) {
+            if (now - intervalStartNanos < RATE_INTERVAL_NANOS)
+                return;
+            // Intervals without any traffic reset the allowance to its minimum
+            boolean consecutive = now - intervalStartNanos < 2 * RATE_INTERVAL_NANOS;
+            allowance = Math.max(MIN_ALLOWANCE, consecutive ? 2 * completedInInterval : 0);
+            pickedInInterval = 0;
+            completedInInterval = 0;
+            intervalStartNanos = now;
+        }
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+        final Host host;
+        final boolean replica;
+        final boolean overAllowance;
+        final double score;
+
+        Candidate(Host host, boolean replica, boolean overAllowance, double score) {
+            this.host = host;
+            this.replica = replica;
+            this.overAllowance = overAllowance;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (replica != other.replica)
+                return replica ? -1 : 1;
+            if (overAllowance != other.overAllowance)
+                return overAllowance ? 1 : -1;
+            return Double.compare(score, other.score);
+        }
+    }
+
+    public LatencyRankingPolicy(LoadBalancingPolicy childPolicy) {
+        this.childPolicy = childPolicy;
+    }
+
+    /**
+     * Sets the session whose in-flight requests are used in the scores; until then, only latencies are.
+     */
+    public void setSession(Session session) {
+        this.session = session;
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(Cluster cluster, Collection<Host> hosts) {
+        this.metadata = cluster.getMetadata();
+        this.protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+        this.codecRegistry = cluster.getConfiguration().getCodecRegistry();
+        childPolicy.init(cluster, hosts);
+        cluster.register(this);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ranking-sampler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                refreshScores();
+            }
+        }, 0, SAMPLE_NANOS, TimeUnit.NANOSECONDS);
+        sampler = executor;
+    }
+
+    private void refreshScores() {
+        long now = System.nanoTime();
+        Session session = this.session;
+        Session.State state = session == null ? null : session.getState();
+        for (Map.Entry<Host, HostStats> entry : stats.entrySet()) {
+            HostStats hostStats = entry.getValue();
+            int inFlight = state == null ? 0 : state.getInFlightQueries(entry.getKey());
+            hostStats.cachedScore = hostStats.score(now, inFlight);
+        }
+    }
+
+    @Override
+    public HostDistance distance(Host host) {
+        return childPolicy.distance(host);
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+        long now = System.nanoTime();
+        Set<Host> replicas = getReplicas(loggedKeyspace, statement);
+
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        Iterator<Host> childPlan = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        while (childPlan.hasNext()) {
+            Host host = childPlan.next();
+            HostStats hostStats = getStats(host);
+            candidates.add(new Candidate(host, replicas.contains(host), hostStats.isOverAllowance(now),
+                    hostStats.cachedScore));
+        }
+        Collections.sort(candidates);
+
+        List<Host> plan = new ArrayList<Host>(candidates.size());
+        for (Candidate candidate : candidates)
+            plan.add(candidate.host);
+        if (!plan.isEmpty())
+            getStats(plan.get(0)).picked(now);
+        return plan.iterator();
+    }
+
+    private Set<Host> getReplicas(String loggedKeyspace, Statement statement) {
+        ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+        String keyspace = statement.getKeyspace() != null ? statement.getKeyspace() : loggedKeyspace;
+        if (routingKey == null || keyspace == null)
+            return Collections.emptySet();
+        return metadata.getReplicas(Metadata.quote(keyspace), routingKey);
+    }
+
+    private HostStats getStats(Host host) {
+        HostStats hostStats = stats.get(host);
+        if (hostStats == null) {
+            hostStats = new HostStats();
+            HostStats old = stats.putIfAbsent(host, hostStats);
+            if (old != null)
+                hostStats = old;
+        }
+        return hostStats;
+    }
+
+    @Override
+    public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+        // logical operations reported by the client itself carry no host
+        if (host == null)
+            return;
+        getStats(host).add(System.nanoTime(), newLatencyNanos);
+    }
+
+    /**
+     * Returns the decaying latency average of a host in microseconds, or -1 if it was never measured.
+     */
+    public double getLatencyMicros(Host host) {
+        HostStats hostStats = getStats(host);
+        synchronized (hostStats) {
+            return hostStats.lastUpdateNanos == 0 ? -1 : hostStats.latencyNanos / 1000;
+        }
+    }
+
+    /**
+     * Returns the number of query plans in which the host came first.
+     */
+    public long getRoutedCount(Host host) {
+        HostStats hostStats = getStats(host);
+        synchronized (hostStats) {
+            return hostStats.routed;
+        }
+    }
+
+    @Override
+    public void onAdd(Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    @Override
+    public void onUp(Host host) {
+        childPolicy.onUp(host);
+    }
+
+    @Override
+    public void onDown(Host host) {
+        childPolicy.onDown(host);
+    }
+
+    @Override
+    public void onRemove(Host host) {
+        childPolicy.onRemove(host);
+        stats.remove(host);
+    }
+
+    @Override
+    public void onRegister(Cluster cluster) {
+        // nothing to do
+    }
+
+    @Override
+    public void onUnregister(Cluster cluster) {
+        // nothing to do
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null)
+            sampler.shutdownNow();
+        childPolicy.close();
+    }
+}
@@ -0,0 +1,237 @@
+import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side scheduling stage between request generation and the session: multigets are queued per coordinator and
+ * dispatched in the order of a {@link Policy}, with at most a fixed number of them in flight per coordinator. The
+ * queues are bounded too: a multiget submitted to a full queue is rejected at once, its future failing with a
+ * {@link RejectedExecutionException}, and is only counted (see {@link #getRejected()}) rather than reported to the
+ * latency trackers, as its near-zero latency would skew them.
+ * <p/>
+ * The coordinator of a multiget is the first live replica of its first key, to which it is routed explicitly (see
+ * {@link RoutedStatement}); this matches the choice of a token-aware policy that does not shuffle replicas. Multigets
+ * are reported to the latency trackers once they complete, with a latency measured from their submission, so that
+ * the time spent in the client queue is accounted for.
+ */
+public class MultiGetScheduler {
+
+    public enum Policy {
+        FIFO,           // submission order
+        SMALLEST_FIRST, // fewest keys first
+        EDF,            // earliest deadline first, the deadline growing with the number of keys
+        BOTTLENECK      // smallest bottleneck first, i.e. the largest number of keys owned by a single replica
+    }
+
+    private static class Request implements Comparable<Request> {
+        final Statement statement;
+        final RoutedStatement routed;
+        final long priority;
+        final long seq;
+        final long submitNanos;
+        final SettableFuture<ResultSet> result = SettableFuture.create();
+
+        Request(Statement statement, RoutedStatement routed, long priority, long seq, long submitNanos) {
+            this.statement = statement;
+            this.routed = routed;
+            this.priority = priority;
+            this.seq = seq;
+            this.submitNanos = submitNanos;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority)
+                return priority < other.priority ? -1 : 1;
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private static class HostQueue {
+        final PriorityQueue<Request> queue = new PriorityQueue<Request>();
+        int inFlight;
+    }
+
+    // Multigets whose keys have no live replica are queued here and left to the load balancing policy
+    private static final Object ANY_HOST = new Object();
+
+    private final Session session;
+    private final Metadata metadata;
+    private final KeyTable keyTable;
+    private final String keyspace;
+    private final Policy policy;
+    private final int window;
+    private final int queueCapacity;
+    private final long deadlineBaseNanos;
+    private final long deadlinePerKeyNanos;
+    private final List<LatencyTracker> trackers;
+    private final ConcurrentMap<Object, HostQueue> queues = new ConcurrentHashMap<Object, HostQueue>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queueingNanos = new AtomicLong();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param session             the session to execute with.
+     * @param keyspace            the keyspace of the table, used to look up the replicas.
+     * @param keyTable            provides the serialized keys.
+     * @param policy              the dispatch order.
+     * @param window              the maximum number of multigets in flight per coordinator.
+     * @param queueCapacity       the maximum number of multigets queued per coordinator, beyond which they are rejected.
+     * @param deadlineBaseNanos   EDF only: the deadline of a multiget is its intended start plus this value...
+     * @param deadlinePerKeyNanos ...plus this value for every key.
+     * @param trackers            the trackers completed multigets are reported to.
+     */
+    public MultiGetScheduler(Session session, String keyspace, KeyTable keyTable, Policy policy, int window,
+                             int queueCapacity, long deadlineBaseNanos, long deadlinePerKeyNanos, List<LatencyTracker> trackers) {
+        Cluster cluster = session.getCluster();
+        this.session = session;
+        this.metadata = cluster.getMetadata();
+        this.keyTable = keyTable;
+        this.keyspace = keyspace;
+        this.policy = policy;
+        this.window = window;
+        this.queueCapacity = queueCapacity;
+        this.deadlineBaseNanos = deadlineBaseNanos;
+        this.deadlinePerKeyNanos = deadlinePerKeyNanos;
+        this.trackers = trackers;
+    }
+
+    /**
+     * Queues a multiget for dispatch.
+     *
+     * @param statement          the multiget.
+     * @param keys               its keys.
+     * @param intendedStartNanos the time at which it was supposed to be sent, as a System.nanoTime() value.
+     * @return a future on its result, failed with a {@link RejectedExecutionException} if the queue was full.
+     */
+    public ListenableFuture<ResultSet> submit(Statement statement, Collection<String> keys, long intendedStartNanos) {
+        long now = System.nanoTime();
+        long seq = submitted.getAndIncrement();
+        ByteBuffer routingKey = keyTable.encoded(keys.iterator().next());
+
+        long priority;
+        switch (policy) {
+            case SMALLEST_FIRST:
+                priority = keys.size();
+                break;
+            case EDF:
+                priority = intendedStartNanos + deadlineBaseNanos + deadlinePerKeyNanos * keys.size();
+                break;
+            case BOTTLENECK:
+                priority = bottleneck(keys);
+                break;
+            default:
+                priority = seq;
+        }
+
+        Request request = new Request(statement, new RoutedStatement(statement, routingKey), priority, seq, now);
+        HostQueue queue = getQueue(coordinator(routingKey));
+        synchronized (queue) {
+            if (queue.queue.size() >= queueCapacity) {
+                rejected.incrementAndGet();
+                request.result.setException(new RejectedExecutionException(
+                        "Dispatch queue full (" + queueCapacity + " multigets)"));
+                return request.result;
+            }
+            queue.queue.add(request);
+        }
+        dispatch(queue);
+        return request.result;
+    }
+
+    private void dispatch(final HostQueue queue) {
+        while (true) {
+            final Request request;
+            synchronized (queue) {
+                if (queue.inFlight >= window || queue.queue.isEmpty())
+                    return;
+                request = queue.queue.poll();
+                queue.inFlight++;
+            }
+            dispatched.incrementAndGet();
+            queueingNanos.addAndGet(System.nanoTime() - request.submitNanos);
+            Futures.addCallback(session.executeAsync(request.routed), new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rs) {
+                    completed(queue, request, null);
+                    request.result.set(rs);
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    completed(queue, request, throwable instanceof Exception ? (Exception) throwable : null);
+                    request.result.setException(throwable);
+                }
+            });
+        }
+    }
+
+    private void completed(HostQueue queue, Request request, Exception exception) {
+        long latencyNanos = System.nanoTime() - request.submitNanos;
+        for (LatencyTracker tracker : trackers)
+            tracker.update(null, request.statement, exception, latencyNanos);
+        synchronized (queue) {
+            queue.inFlight--;
+        }
+        dispatch(queue);
+    }
+
+    private Object coordinator(ByteBuffer routingKey) {
+        for (Host host : metadata.getReplicas(keyspace, routingKey)) {
+            if (host.isUp())
+                return host;
+        }
+        return ANY_HOST;
+    }
+
+    private long bottleneck(Collection<String> keys) {
+        Map<Object, Integer> keysPerReplica = new HashMap<Object, Integer>();
+        int max = 0;
+        for (String key : keys) {
+            Object replica = coordinator(keyTable.encoded(key));
+            Integer count = keysPerReplica.get(replica);
+            count = count == null ? 1 : count + 1;
+            keysPerReplica.put(replica, count);
+            max = Math.max(max, count);
+        }
+        return max;
+    }
+
+    private HostQueue getQueue(Object host) {
+        HostQueue queue = queues.get(host);
+        if (queue == null) {
+            queue = new HostQueue();
+            HostQueue old = queues.putIfAbsent(host, queue);
+            if (old != null)
+                queue = old;
+        }
+        return queue;
+    }
+
+    /**
+     * Returns the average time multigets spent in the client queue, in microseconds.
+     */
+    public double getAverageQueueingMicros() {
+        long count = dispatched.get();
+        return count == 0 ? 0 : queueingNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * Returns the number of multigets rejected because their coordinator's queue was full.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,124 @@
+import com.datastax.driver.core.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Builds multigets from prepared statements instead of QueryBuilder, so that neither the client nor the coordinator
+ * has to build and parse a new CQL string for every operation.
+ * <p/>
+ * Two variants are supported:
+ * <ul>
+ * <li>{@link Mode#LIST}: a single {@code SELECT ... WHERE y_id IN ? LIMIT ?} statement, binding the keys as a list;</li>
+ * <li>{@link Mode#ARITY}: one {@code SELECT ... WHERE y_id IN (?, ..., ?) LIMIT ?} statement per number of keys,
+ * prepared the first time that batch size is seen and cached afterwards.</li>
+ * </ul>
+ */
+public class PreparedMultiGets {
+
+    public enum Mode {
+        LIST, ARITY
+    }
+
+    private final Session session;
+    private final String table;
+    private final String field;
+    private final Mode mode;
+    private final PreparedStatement listStatement;
+    private final ConcurrentMap<Integer, PreparedStatement> arityStatements;
+
+    /**
+     * Creates a new instance; in {@link Mode#LIST} mode the statement is prepared right away.
+     *
+     * @param session the session to prepare statements on.
+     * @param table   the table to read from.
+     * @param field   the column to read.
+     * @param mode    the prepared statement variant.
+     */
+    public PreparedMultiGets(Session session, String table, String field, Mode mode) {
+        this.session = session;
+        this.table = table;
+        this.field = field;
+        this.mode = mode;
+        this.arityStatements = new ConcurrentHashMap<Integer, PreparedStatement>();
+        this.listStatement = mode == Mode.LIST
+                ? prepare("SELECT " + field + " FROM " + table + " WHERE y_id IN ? LIMIT ?")
+                : null;
+    }
+
+    /**
+     * Returns a statement reading the given keys.
+     */
+    public Statement bind(Collection<String> keys) {
+        Statement stmt;
+        if (mode == Mode.LIST) {
+            stmt = listStatement.bind(new ArrayList<String>(keys), keys.size());
+        } else {
+            Object[] values = new Object[keys.size() + 1];
+            int i = 0;
+            for (String key : keys)
+                values[i++] = key;
+            values[i] = keys.size();
+            stmt = getArityStatement(keys.size()).bind(values);
+        }
+        stmt.setFetchSize(Integer.MAX_VALUE);
+        return stmt;
+    }
+
+    /**
+     * Same as {@link #bind(Collection)}, binding the array directly.
+     */
+    public Statement bind(String[] keys) {
+        Statement stmt;
+        if (mode == Mode.LIST) {
+            stmt = listStatement.bind(Arrays.asList(keys), keys.length);
+        } else {
+            Object[] values = Arrays.copyOf(keys, keys.length + 1, Object[].class);
+            values[keys.length] = keys.length;
+            stmt = getArityStatement(keys.length).bind(values);
+        }
+        stmt.setFetchSize(Integer.MAX_VALUE);
+        return stmt;
+    }
+
+    private PreparedStatement getArityStatement(int arity) {
+        PreparedStatement ps = arityStatements.get(arity);
+        if (ps == null) {
+            StringBuilder query = new StringBuilder("SELECT ").append(field).append(" FROM ").append(table)
+                    .append(" WHERE y_id IN (");
+            for (int i = 0; i < arity; i++)
+                query.append(i == 0 ? "?" : ",?");
+            query.append(") LIMIT ?");
+            ps = prepare(query.toString());
+            PreparedStatement old = arityStatements.putIfAbsent(arity, ps);
+            if (old != null) {
+                // Another thread prepared the same arity concurrently, use its instance
+                ps = old;
+            }
+        }
+        return ps;
+    }
+
+    private PreparedStatement prepare(String query) {
+        PreparedStatement ps = session.prepare(query);
+        ps.setConsistencyLevel(ConsistencyLevel.ONE);
+        return ps;
+    }
+
+    /**
+     * Returns the number of keys read by a statement built by this class, or -1 if the statement is not a prepared
+     * multiget.
+     */
+    public static int batchSize(BoundStatement statement) {
+        PreparedStatement ps = statement.preparedStatement();
+        if (!ps.getQueryString().startsWith("SELECT"))
+            return -1;
+        ColumnDefinitions variables = ps.getVariables();
+        if (variables.getType(0).getName() == DataType.Name.LIST)
+            return statement.getList(0, String.class).size();
+        return variables.size() - 1; // one marker per key, plus the LIMIT
+    }
+}
@@ -0,0 +1,376 @@
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import misc.ByteIterator;
+import misc.RandomByteIterator;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a contiguous range of rows split into shards, which a pool of worker threads drains through a shared
+ * {@link BulkWriter}.
+ * <p/>
+ * Each shard issues its rows in chunks and remembers the end of the longest prefix of chunks whose writes were all
+ * acknowledged. These per-shard positions are periodically written to a checkpoint file, from which an interrupted
+ * load resumes. Writes still in flight when the client died are simply issued again: inserts are idempotent.
+ * <p/>
+ * A failed write is retried a few times with exponential backoff. A row that still fails stalls the checkpoint of its
+ * shard for the rest of the run, see {@link #getStalledShards()}. The completion tracker sees one request per row,
+ * which completes with the outcome of its last attempt.
+ */
+public class RangeLoader {
+    private static final int CHUNK_ROWS = 10000;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long FIRST_BACKOFF_MILLIS = 100;
+
+    private final BulkWriter writer;
+    private final CompletionTracker completions;
+    private final List<Shard> shards;
+    private final File checkpointFile; // null to disable checkpoints
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicLong unsettledRows = new AtomicLong(); // rows issued whose final outcome is not known yet
+    private final long startNanos;
+    private long lastReportNanos;
+    private long lastReportRows;
+
+    /**
+     * A sub-range [from, to) of the rows to load.
+     */
+    public static class Shard {
+        final int id;
+        final long from;
+        final long to;
+        volatile long checkpoint; // every row before this one was acknowledged
+        final AtomicLong acked = new AtomicLong();
+        final AtomicLong failed = new AtomicLong(); // rows that failed every attempt
+        final AtomicLong retried = new AtomicLong();
+        final ConcurrentLinkedQueue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+        long lastReportAcked;
+
+        Shard(int id, long from, long to, long checkpoint) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.checkpoint = checkpoint;
+            this.acked.set(checkpoint - from);
+            this.lastReportAcked = checkpoint - from;
+        }
+
+        long size() {
+            return to - from;
+        }
+    }
+
+    private static class Chunk {
+        final Shard shard;
+        final long end;
+        final AtomicInteger remaining;
+        volatile boolean failed;
+
+        Chunk(Shard shard, long start, long end) {
+            this.shard = shard;
+            this.end = end;
+            this.remaining = new AtomicInteger((int) (end - start));
+        }
+    }
+
+    /**
+     * The write of one row, re-issued with exponential backoff until it succeeds or runs out of attempts.
+     */
+    private class RowWrite implements FutureCallback<Object>, Runnable {
+        final Chunk chunk;
+        final long row;
+        final long valueLength;
+        final SettableFuture<Object> outcome = SettableFuture.create(); // outcome of the last attempt
+        int attempt;
+
+        RowWrite(Chunk chunk, long row, long valueLength) {
+            this.chunk = chunk;
+            this.row = row;
+            this.valueLength = valueLength;
+        }
+
+        void issue(ByteIterator value) throws InterruptedException {
+            attempt++;
+            try {
+                Futures.addCallback(writer.write(AsyncClient.buildKeyName(row), value), this);
+            } catch (RuntimeException e) {
+                onFailure(e);
+            }
+        }
+
+        @Override
+        public void onSuccess(Object result) {
+            chunk.shard.acked.incrementAndGet();
+            outcome.set(result);
+            settle();
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            if (attempt >= MAX_ATTEMPTS) {
+                System.err.println("[LOAD-FAILURE] Row " + row + " failed after " + attempt + " attempts: " + throwable);
+                chunk.failed = true;
+                chunk.shard.failed.incrementAndGet();
+                outcome.setException(throwable);
+                settle();
+                return;
+            }
+            chunk.shard.retried.incrementAndGet();
+            retries.schedule(this, FIRST_BACKOFF_MILLIS << (attempt - 1), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            try {
+                // The value of the failed attempt was consumed, a fresh one of the same length is as good
+                issue(new RandomByteIterator(valueLength));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                attempt = MAX_ATTEMPTS;
+                onFailure(e);
+            }
+        }
+
+        private void settle() {
+            chunk.remaining.decrementAndGet();
+            unsettledRows.decrementAndGet();
+        }
+    }
+
+    /**
+     * Creates a new loader.
+     *
+     * @param writer         the writer shared by all shards.
+     * @param completions    the tracker every row is registered with.
+     * @param shards         the shards to load, see {@link #split} and {@link #readCheckpoint}.
+     * @param checkpointFile the file checkpoints are written to, or null.
+     */
+    public RangeLoader(BulkWriter writer, CompletionTracker completions, List<Shard> shards, File checkpointFile) {
+        this.writer = writer;
+        this.completions = completions;
+        this.shards = shards;
+        this.checkpointFile = checkpointFile;
+        this.startNanos = System.nanoTime();
+        this.lastReportNanos = startNanos;
+        this.lastReportRows = getAckedRows();
+    }
+
+    /**
+     * Splits rows [0, rows) into {@code count} shards of (nearly) equal size.
+     */
+    public static List<Shard> split(long rows, int count) {
+        List<Shard> shards = new ArrayList<Shard>();
+        for (int i = 0; i < count; i++) {
+            long from = rows * i / count;
+            shards.add(new Shard(i, from, rows * (i + 1) / count, from));
+        }
+        return shards;
+    }
+
+    /**
+     * Reads the shards and their positions back from a checkpoint file.
+     */
+    public static List<Shard> readCheckpoint(File file) throws IOException {
+        List<Shard> shards = new ArrayList<Shard>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split(" ");
+                shards.add(new Shard(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Issues every remaining row from one thread per generator, and returns once all of them were either acknowledged
+     * or failed every attempt. Progress is reported (and checkpointed) every {@code reportSeconds} in the meantime.
+     */
+    public void load(List<RequestGenerator> generators, long reportSeconds)
+            throws InterruptedException, ExecutionException {
+        final ConcurrentLinkedQueue<Shard> pending = new ConcurrentLinkedQueue<Shard>();
+        for (Shard shard : shards) {
+            if (shard.checkpoint < shard.to)
+                pending.add(shard);
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                checkpoint(true);
+            }
+        }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+        ExecutorService workers = Executors.newFixedThreadPool(generators.size());
+        try {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final RequestGenerator generator : generators) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Shard shard;
+                        while ((shard = pending.poll()) != null)
+                            loadShard(shard, generator);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> f : workers.invokeAll(tasks))
+                f.get(); // propagate worker exceptions
+            // Retries are issued after the workers are done, so wait for the outcome of every row
+            while (unsettledRows.get() > 0)
+                Thread.sleep(100);
+        } finally {
+            workers.shutdown();
+            reporter.shutdownNow();
+            retries.shutdownNow();
+        }
+    }
+
+    private void loadShard(Shard shard, RequestGenerator generator) throws InterruptedException {
+        long row = shard.checkpoint;
+        while (row < shard.to) {
+            long end = Math.min(row + CHUNK_ROWS, shard.to);
+            Chunk chunk = new Chunk(shard, row, end);
+            shard.chunks.add(chunk);
+            for (; row < end; row++) {
+                ByteIterator value = generator.nextValue();
+                unsettledRows.incrementAndGet();
+                RowWrite write = new RowWrite(chunk, row, value.bytesLeft());
+                completions.track(write.outcome);
+                write.issue(value);
+            }
+        }
+    }
+
+    /**
+     * Writes the final checkpoint and progress report, once no more writes are in flight.
+     */
+    public void finish() {
+        checkpoint(true);
+    }
+
+    private synchronized void checkpoint(boolean report) {
+        for (Shard shard : shards) {
+            Chunk chunk;
+            while ((chunk = shard.chunks.peek()) != null && chunk.remaining.get() == 0 && !chunk.failed) {
+                shard.chunks.poll();
+                shard.checkpoint = chunk.end;
+            }
+        }
+        if (checkpointFile != null) {
+            try {
+                writeCheckpoint();
+            } catch (IOException e) {
+                System.err.println("Exception: " + e);
+            }
+        }
+        if (report)
+            report();
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try (Writer out = new FileWriter(tmp)) {
+            out.write("# shard from to checkpoint\n");
+            for (Shard shard : shards)
+                out.write(shard.id + " " + shard.from + " " + shard.to + " " + shard.checkpoint + "\n");
+        }
+        // Replace the previous checkpoint at once, so that a crash never leaves a truncated file behind
+        Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void report() {
+        long now = System.nanoTime();
+        double interval = (now - lastReportNanos) / 1.0E9;
+        long rows = getAckedRows();
+        System.out.println("[LOAD-PROGRESS] Rows: " + rows + "/" + getTotalRows()
+                + " (" + String.format("%.1f", 100.0 * rows / getTotalRows()) + "%)"
+                + ", Current: " + (long) ((rows - lastReportRows) / interval) + " rows/sec"
+                + ", Average: " + (long) (rows / ((now - startNanos) / 1.0E9)) + " rows/sec");
+        for (Shard shard : shards) {
+            long acked = shard.acked.get();
+            if (acked != shard.lastReportAcked) {
+                System.out.println("[LOAD-SHARD] Shard " + shard.id + ": " + acked + "/" + shard.size() + " rows"
+                        + ", Current: " + (long) ((acked - shard.lastReportAcked) / interval) + " rows/sec"
+                        + ", Checkpoint: " + shard.checkpoint);
+                shard.lastReportAcked = acked;
+            }
+        }
+        lastReportNanos = now;
+        lastReportRows = rows;
+    }
+
+    /**
+     * Returns the shards whose checkpoint is stalled by a row that failed every attempt.
+     */
+    public List<Shard> getStalledShards() {
+        List<Shard> stalled = new ArrayList<Shard>();
+        for (Shard shard : shards) {
+            if (shard.failed.get() > 0)
+                stalled.add(shard);
+        }
+        return stalled;
+    }
+
+    /**
+     * Returns the number of rows that failed every attempt.
+     */
+    public long getFailedRows() {
+        long rows = 0;
+        for (Shard shard : shards)
+            rows += shard.failed.get();
+        return rows;
+    }
+
+    /**
+     * Returns the number of write attempts that were retried.
+     */
+    public long getRetries() {
+        long retries = 0;
+        for (Shard shard : shards)
+            retries += shard.retried.get();
+        return retries;
+    }
+
+    /**
+     * Returns the number of rows acknowledged so far, including the ones loaded before resuming.
+     */
+    public long getAckedRows() {
+        long rows = 0;
+        for (Shard shard : shards)
+            rows += shard.acked.get();
+        return rows;
+    }
+
+    /**
+     * Returns the number of rows already loaded when this loader was created.
+     */
+    public long getResumedRows() {
+        long rows = 0;
+        for (Shard shard : shards)
+            rows += shard.checkpoint - shard.from;
+        return rows;
+    }
+
+    public long getTotalRows() {
+        long rows = 0;
+        for (Shard shard : shards)
+            rows += shard.size();
+        return rows;
+    }
+}
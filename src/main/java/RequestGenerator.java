@@ -0,0 +1,155 @@
+import com.datastax.driver.core.Statement;
+import generators.IntegerGenerator;
+import generators.TraceReader;
+import generators.TraceRecord;
+import misc.ByteIterator;
+import misc.IntOpenHashSet;
+import misc.RandomByteIterator;
+
+import java.util.*;
+
+/**
+ * Builds the statements issued by the client: multigets, either replayed from the trace file or drawn from the batch
+ * size and key skew distributions, and single-row inserts.
+ * <p/>
+ * Instances are not thread-safe; every sending thread (or logical client, in closed-loop mode) owns its own.
+ */
+public class RequestGenerator {
+    private static final int INITIAL_BATCH_CAPACITY = 64;
+
+    private final IntegerGenerator bszGenerator;
+    private final IntegerGenerator skwGenerator;
+    private final IntegerGenerator valueGenerator;
+    private final TraceReader trace; // null for synthetic workloads
+    private final KeyTable keyTable;
+    private final PreparedMultiGets preparedMultiGets; // null to build multigets with QueryBuilder
+    private int lastBatchSize;
+    private String[] lastKeys;
+    private int[] ids = new int[INITIAL_BATCH_CAPACITY]; // key ids of the multiget being built
+    private final TraceRecord record = new TraceRecord(INITIAL_BATCH_CAPACITY);
+    private final IntOpenHashSet distinctIds = new IntOpenHashSet(INITIAL_BATCH_CAPACITY);
+    private double lastRecordedTime;
+
+    public RequestGenerator(IntegerGenerator bszGenerator, IntegerGenerator skwGenerator,
+                            IntegerGenerator valueGenerator, TraceReader trace, KeyTable keyTable,
+                            PreparedMultiGets preparedMultiGets) {
+        this.bszGenerator = bszGenerator;
+        this.skwGenerator = skwGenerator;
+        this.valueGenerator = valueGenerator;
+        this.trace = trace;
+        this.keyTable = keyTable;
+        this.preparedMultiGets = preparedMultiGets;
+    }
+
+    /**
+     * Builds the next multiget.
+     * <p/>
+     * The key ids are drawn into a buffer and deduplicated with a primitive set, both reused across calls, and key
+     * names are looked up in the key table, so that the statement itself is the only significant allocation left.
+     */
+    public Statement nextMultiGet() {
+        int count;
+        if (trace != null) {
+            count = readMultiGetFromTrace();
+        } else {
+            count = bszGenerator.nextInt();
+            if (count <= 0)
+                count = 1;
+            ensureIdCapacity(count);
+            for (int j = 0; j < count; j++)
+                ids[j] = skwGenerator.nextInt();
+        }
+
+        // Compact the distinct ids to the front of the buffer, in order of first occurrence
+        distinctIds.clear();
+        int distinct = 0;
+        for (int j = 0; j < count; j++) {
+            if (distinctIds.add(ids[j]))
+                ids[distinct++] = ids[j];
+        }
+        String[] keys = new String[distinct];
+        for (int j = 0; j < distinct; j++)
+            keys[j] = keyTable.name(ids[j]);
+
+        lastBatchSize = distinct;
+        lastKeys = keys;
+        if (preparedMultiGets != null)
+            return preparedMultiGets.bind(keys);
+        return AsyncClient.generateMultiGet("usertable", keys);
+    }
+
+    /**
+     * Returns the distinct keys of the last multiget built.
+     */
+    public Collection<String> getLastKeys() {
+        return Arrays.asList(lastKeys);
+    }
+
+    /**
+     * Returns the number of distinct keys in the last multiget built.
+     */
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    /**
+     * Returns the recorded time (in microseconds) of the last multiget built, as stamped by the trace reader when the
+     * record was read, or 0 for synthetic workloads.
+     */
+    public double getLastRecordedTime() {
+        return lastRecordedTime;
+    }
+
+    /**
+     * Builds an insert of random data for the given row.
+     */
+    public Statement nextInsert(long row) {
+        String kname = AsyncClient.buildKeyName(row);
+        List<String> fields = new ArrayList<String>();
+        fields.add("field0");
+        HashMap<String, ByteIterator> values = buildValues(fields);
+        return AsyncClient.generateInsert("usertable", kname, values);
+    }
+
+    /**
+     * Returns a random value sized by the value generator.
+     */
+    public ByteIterator nextValue() {
+        return new RandomByteIterator(valueGenerator.nextInt());
+    }
+
+    /**
+     * Reads the next multiget of the workload trace into the id buffer, mapping trace ids to key ids, and sets the
+     * recorded time.
+     *
+     * @return the number of ids read.
+     * @throws UnsupportedOperationException if the next trace record is not a multiget.
+     */
+    private int readMultiGetFromTrace() throws UnsupportedOperationException {
+        trace.next(record);
+        lastRecordedTime = record.time();
+        int count = record.count();
+        ensureIdCapacity(count);
+        int[] traceIds = record.ids();
+        for (int j = 0; j < count; j++)
+            ids[j] = keyTable.traceKey(traceIds[j]);
+        return count;
+    }
+
+    private void ensureIdCapacity(int capacity) {
+        if (ids.length < capacity)
+            ids = Arrays.copyOf(ids, Math.max(capacity, ids.length * 2));
+    }
+
+    /**
+     * Builds values for all fields.
+     */
+    private HashMap<String, ByteIterator> buildValues(List<String> fields) {
+        HashMap<String, ByteIterator> values = new HashMap<String, ByteIterator>();
+
+        for (String fieldkey : fields) {
+            values.put(fieldkey, nextValue());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,58 @@
+import com.datastax.driver.core.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A statement routed by the client with an explicit routing key, so that the token-aware load balancing policy sends
+ * it to a replica of that key (or with the routing key of the wrapped statement, if none is given).
+ * <p/>
+ * Routed statements are parts of a logical operation (a scatter-gather sub-query, a scheduled or hedged multiget) that
+ * its issuer reports to the latency trackers as a whole; the trackers ignore the statements themselves.
+ * <p/>
+ * With {@link HedgeRoutingPolicy} installed, a routed statement also records the first host of its query plan, and
+ * may exclude a host from it.
+ */
+public class RoutedStatement extends StatementWrapper {
+    private final ByteBuffer routingKey;
+    private final Host excludedHost;
+    private volatile Host coordinator;
+
+    /**
+     * @param wrapped    the statement to execute.
+     * @param routingKey the routing key, or null to keep the one of the wrapped statement.
+     */
+    public RoutedStatement(Statement wrapped, ByteBuffer routingKey) {
+        this(wrapped, routingKey, null);
+    }
+
+    /**
+     * @param wrapped      the statement to execute.
+     * @param routingKey   the routing key, or null to keep the one of the wrapped statement.
+     * @param excludedHost a host the statement must not be sent to, or null.
+     */
+    public RoutedStatement(Statement wrapped, ByteBuffer routingKey, Host excludedHost) {
+        super(wrapped);
+        this.routingKey = routingKey;
+        this.excludedHost = excludedHost;
+    }
+
+    @Override
+    public ByteBuffer getRoutingKey(ProtocolVersion protocolVersion, CodecRegistry codecRegistry) {
+        return routingKey != null ? routingKey : super.getRoutingKey(protocolVersion, codecRegistry);
+    }
+
+    public Host getExcludedHost() {
+        return excludedHost;
+    }
+
+    /**
+     * Returns the first host of the query plan of this statement, or null if no plan was computed yet.
+     */
+    public Host getCoordinator() {
+        return coordinator;
+    }
+
+    void setCoordinator(Host coordinator) {
+        this.coordinator = coordinator;
+    }
+}
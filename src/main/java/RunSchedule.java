@@ -0,0 +1,118 @@
+import misc.RateProfile;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Splits a run into consecutive phases: a warm-up (JIT compilation, connection establishment, cold caches), a ramp
+ * of the offered rate up to the target, a steady-state measurement window and a cool-down that keeps the load on
+ * while the last measured requests complete. Latencies are recorded per phase and only the steady state is used as
+ * the headline result.
+ * <p/>
+ * During warm-up the offered rate is {@code rampFrom} of the target; during the ramp it grows linearly to the target.
+ */
+public class RunSchedule implements RateProfile {
+
+    public enum Phase {
+        WARMUP, RAMP, STEADY, COOLDOWN
+    }
+
+    private final long warmupNanos;
+    private final long rampNanos;
+    private final long steadyNanos;
+    private final long cooldownNanos;
+    private final double rampFrom;
+    private volatile long startNanos;
+
+    /**
+     * @param warmupSeconds   length of the warm-up phase.
+     * @param rampSeconds     length of the ramp phase.
+     * @param steadySeconds   length of the measured steady-state window.
+     * @param cooldownSeconds length of the cool-down phase.
+     * @param rampFrom        fraction of the target rate offered during warm-up and at the start of the ramp, in
+     *                        (0, 1]: interarrivals are divided by it.
+     * @throws IllegalArgumentException if a phase length is negative or rampFrom is out of range.
+     */
+    public RunSchedule(int warmupSeconds, int rampSeconds, int steadySeconds, int cooldownSeconds, double rampFrom) {
+        if (warmupSeconds < 0 || rampSeconds < 0 || steadySeconds < 0 || cooldownSeconds < 0)
+            throw new IllegalArgumentException("Phase lengths must not be negative");
+        if (!(rampFrom > 0 && rampFrom <= 1))
+            throw new IllegalArgumentException("The ramp must start above 0% and at most at 100% of the target rate, got "
+                    + rampFrom * 100 + "%");
+        this.warmupNanos = SECONDS.toNanos(warmupSeconds);
+        this.rampNanos = SECONDS.toNanos(rampSeconds);
+        this.steadyNanos = SECONDS.toNanos(steadySeconds);
+        this.cooldownNanos = SECONDS.toNanos(cooldownSeconds);
+        this.rampFrom = rampFrom;
+    }
+
+    /**
+     * Parses a schedule given as comma-separated phase lengths in seconds: warm-up, ramp, steady state, cool-down.
+     */
+    public static RunSchedule parse(String phases, double rampFrom) {
+        String[] values = phases.split(",");
+        if (values.length != 4)
+            throw new IllegalArgumentException("Expected 'warmup,ramp,steady,cooldown' in seconds, got '" + phases + "'");
+        return new RunSchedule(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()),
+                Integer.parseInt(values[2].trim()), Integer.parseInt(values[3].trim()), rampFrom);
+    }
+
+    /**
+     * Anchors the schedule at the given System.nanoTime() value.
+     */
+    public void start(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Returns the System.nanoTime() value at which the cool-down ends; no operation is due after it.
+     */
+    public long getEndNanos() {
+        return startNanos + warmupNanos + rampNanos + steadyNanos + cooldownNanos;
+    }
+
+    /**
+     * Returns the phase an operation intended to start at the given System.nanoTime() value belongs to.
+     */
+    public Phase phaseAt(long nanos) {
+        long offset = nanos - startNanos;
+        if (offset < warmupNanos)
+            return Phase.WARMUP;
+        offset -= warmupNanos;
+        if (offset < rampNanos)
+            return Phase.RAMP;
+        offset -= rampNanos;
+        if (offset < steadyNanos)
+            return Phase.STEADY;
+        return Phase.COOLDOWN;
+    }
+
+    /**
+     * Returns the length of the given phase, in nanoseconds.
+     */
+    public long getPhaseNanos(Phase phase) {
+        switch (phase) {
+            case WARMUP:
+                return warmupNanos;
+            case RAMP:
+                return rampNanos;
+            case STEADY:
+                return steadyNanos;
+            default:
+                return cooldownNanos;
+        }
+    }
+
+    @Override
+    public double rateFractionAt(long offsetNanos) {
+        if (offsetNanos < warmupNanos)
+            return rampFrom;
+        offsetNanos -= warmupNanos;
+        if (offsetNanos < rampNanos)
+            return rampFrom + (1 - rampFrom) * offsetNanos / rampNanos;
+        return 1;
+    }
+}
@@ -0,0 +1,144 @@
+import com.datastax.driver.core.*;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes a multiget as concurrent sub-queries sent directly to the replicas owning the keys, instead of a single
+ * IN query that the coordinator has to fan out itself.
+ * <p/>
+ * Keys are grouped either by replica set ({@link Mode#REPLICA}: one sub-query per distinct set of replicas, so any
+ * of them owns every key of the sub-query) or by partition ({@link Mode#PARTITION}: one sub-query per key). Every
+ * sub-query is a {@link RoutedStatement} carrying the routing key of its keys, so the token-aware load balancing
+ * policy sends it to a replica.
+ * <p/>
+ * Sub-queries are not recorded by the latency trackers; once all of them completed, the logical multiget is reported
+ * to the trackers with a latency equal to that of the slowest sub-query.
+ */
+public class ScatterGatherMultiGet {
+
+    public enum Mode {
+        REPLICA, PARTITION
+    }
+
+    private final Session session;
+    private final Metadata metadata;
+    private final KeyTable keyTable;
+    private final String keyspace;
+    private final String table;
+    private final String field;
+    private final Mode mode;
+    private final PreparedMultiGets preparedMultiGets; // null to build sub-queries with QueryBuilder
+    private final List<LatencyTracker> trackers;
+    private final AtomicLong multiGets = new AtomicLong();
+    private final AtomicLong subRequests = new AtomicLong();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param session           the session to execute with.
+     * @param keyspace          the keyspace of the table, used to look up the replicas.
+     * @param table             the table to read from.
+     * @param field             the column to read.
+     * @param mode              how keys are grouped into sub-queries.
+     * @param preparedMultiGets builds the sub-queries from prepared statements, or null to use QueryBuilder.
+     * @param keyTable          provides the serialized keys.
+     * @param trackers          the trackers the logical multigets are reported to.
+     */
+    public ScatterGatherMultiGet(Session session, String keyspace, String table, String field, Mode mode,
+                                 PreparedMultiGets preparedMultiGets, KeyTable keyTable,
+                                 List<LatencyTracker> trackers) {
+        Cluster cluster = session.getCluster();
+        this.session = session;
+        this.metadata = cluster.getMetadata();
+        this.keyTable = keyTable;
+        this.keyspace = keyspace;
+        this.table = table;
+        this.field = field;
+        this.mode = mode;
+        this.preparedMultiGets = preparedMultiGets;
+        this.trackers = trackers;
+    }
+
+    /**
+     * Executes a multiget.
+     *
+     * @param statement the equivalent single multiget, only used to report the logical operation to the trackers.
+     * @param keys      the keys to read.
+     * @return a future on the merged rows of all sub-queries.
+     */
+    public ListenableFuture<List<Row>> execute(final Statement statement, Collection<String> keys) {
+        final long start = System.nanoTime();
+        List<ResultSetFuture> futures = new ArrayList<ResultSetFuture>();
+        for (Map.Entry<Object, List<String>> group : groupKeys(keys).entrySet()) {
+            List<String> groupKeys = group.getValue();
+            ByteBuffer routingKey = keyTable.encoded(groupKeys.get(0));
+            futures.add(session.executeAsync(new RoutedStatement(buildQuery(groupKeys), routingKey)));
+        }
+        multiGets.incrementAndGet();
+        subRequests.addAndGet(futures.size());
+
+        ListenableFuture<List<Row>> merged = Futures.transform(Futures.allAsList(futures),
+                new Function<List<ResultSet>, List<Row>>() {
+                    @Override
+                    public List<Row> apply(List<ResultSet> results) {
+                        List<Row> rows = new ArrayList<Row>();
+                        for (ResultSet rs : results)
+                            rows.addAll(rs.all());
+                        return rows;
+                    }
+                });
+        Futures.addCallback(merged, new FutureCallback<List<Row>>() {
+            @Override
+            public void onSuccess(List<Row> rows) {
+                report(statement, null, System.nanoTime() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                report(statement, throwable instanceof Exception ? (Exception) throwable : null,
+                        System.nanoTime() - start);
+            }
+        });
+        return merged;
+    }
+
+    private Map<Object, List<String>> groupKeys(Collection<String> keys) {
+        Map<Object, List<String>> groups = new HashMap<Object, List<String>>();
+        for (String key : keys) {
+            Object group = mode == Mode.PARTITION ? key
+                    : metadata.getReplicas(keyspace, keyTable.encoded(key));
+            List<String> groupKeys = groups.get(group);
+            if (groupKeys == null) {
+                groupKeys = new ArrayList<String>();
+                groups.put(group, groupKeys);
+            }
+            groupKeys.add(key);
+        }
+        return groups;
+    }
+
+    private Statement buildQuery(List<String> keys) {
+        if (preparedMultiGets != null)
+            return preparedMultiGets.bind(keys);
+        return AsyncClient.generateMultiGet(table, new HashSet<String>(keys), Collections.singleton(field));
+    }
+
+    private void report(Statement statement, Exception exception, long latencyNanos) {
+        for (LatencyTracker tracker : trackers)
+            tracker.update(null, statement, exception, latencyNanos);
+    }
+
+    /**
+     * Returns the average number of sub-queries per multiget.
+     */
+    public double getAverageFanOut() {
+        long count = multiGets.get();
+        return count == 0 ? 0 : subRequests.get() / (double) count;
+    }
+}
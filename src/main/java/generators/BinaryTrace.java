@@ -0,0 +1,142 @@
+package generators;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * The compact binary trace format, and the converter compiling text traces ("R id ... id gap" lines) into it.
+ * <p/>
+ * A binary trace is made of:
+ * <ul>
+ * <li>a fixed-size header: magic, version, flags, the size of the largest record and the number of records;</li>
+ * <li>the records, up to the end of the file: the number of ids as a varint, each id as a varint, then, if the trace
+ * has gaps, the gap in nanoseconds as a varint.</li>
+ * </ul>
+ * Ids are written as they are: the ids of a multiget are not sorted, so encoding each as its difference with the
+ * previous one does not make it any smaller. All fixed-size values are big-endian.
+ * <p/>
+ * There is no record index: traces are only ever replayed sequentially by a single shared reader, and the index of
+ * the first version of the format (the offset of every 4096th record) had no reader. Seeking to a record, or giving
+ * each sender its own part of the trace, would need one; it can be added as a trailer announced by a new flag.
+ * <p/>
+ * Usage: {@code java generators.BinaryTrace <text trace> <binary trace> [--no-gaps]}
+ */
+public class BinaryTrace
+{
+    static final int MAGIC = 0x4D475452; //"MGTR"
+    static final int VERSION = 2;
+    static final int FLAG_GAPS = 1;
+    static final int HEADER_SIZE = 24;
+
+    /**
+     * Returns true if the given file starts with the magic of a binary trace.
+     */
+    public static boolean isBinary(String filename) throws IOException
+    {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            return file.length() >= HEADER_SIZE && file.readInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Compiles a text trace into a binary trace.
+     *
+     * @param gaps whether to keep the recorded gaps.
+     * @return the number of records written.
+     */
+    public static long convert(String textTrace, String binaryTrace, boolean gaps) throws IOException
+    {
+        MappedTraceReader reader = new MappedTraceReader(textTrace);
+        TraceRecord record = new TraceRecord(64);
+        try (FileChannel channel = new RandomAccessFile(binaryTrace, "rw").getChannel()) {
+            channel.truncate(0);
+            channel.position(HEADER_SIZE);
+            CountingOutputStream counter = new CountingOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), HEADER_SIZE);
+            DataOutputStream out = new DataOutputStream(counter);
+
+            long records = 0;
+            int maxRecordBytes = 0;
+            while (reader.read(record, false)) {
+                long recordStart = counter.count;
+                writeVarint(out, record.count);
+                for (int j = 0; j < record.count; j++)
+                    writeVarint(out, record.ids[j]);
+                if (gaps)
+                    writeVarint(out, Math.round(record.gap * 1000));
+                maxRecordBytes = Math.max(maxRecordBytes, (int) (counter.count - recordStart));
+                records++;
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(gaps ? FLAG_GAPS : 0).putInt(maxRecordBytes)
+                    .putLong(records);
+            header.flip();
+            channel.write(header, 0);
+            return records;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Counts the bytes written, starting from a given offset.
+     */
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        long count;
+
+        CountingOutputStream(OutputStream out, long offset)
+        {
+            super(out);
+            this.count = offset;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2) {
+            System.err.println("Usage: BinaryTrace <text trace> <binary trace> [--no-gaps]");
+            System.exit(1);
+        }
+        boolean gaps = !(args.length > 2 && args[2].equals("--no-gaps"));
+        long start = System.nanoTime();
+        long records = convert(args[0], args[1], gaps);
+        long textSize = new File(args[0]).length();
+        long binarySize = new File(args[1]).length();
+        System.out.println("Converted " + records + " records in " + (System.nanoTime() - start)/1.0E9 + " seconds: "
+                + textSize + " -> " + binarySize + " bytes (" + (double) textSize / binarySize + "x)");
+    }
+}
@@ -0,0 +1,141 @@
+package generators;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a trace in the {@link BinaryTrace} format from a memory-mapped file, starting over at the end of the trace.
+ * <p/>
+ * The header records the size of the largest record, so the window is only refilled when fewer bytes than that are
+ * left, and records are then decoded without bounds checks. As in {@link MappedTraceReader}, records without ids are
+ * skipped and their gap is added to the next record's.
+ */
+public class BinaryTraceReader implements TraceReader
+{
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final String filename;
+    private final RandomAccessFile file;
+    private final MappedWindow window;
+    private final boolean gaps;
+    private final int maxRecordBytes;
+    private double elapsed; //recorded time of the last record returned by next(), in microseconds
+    private boolean found; //whether a multiget was read since the reader was created
+
+    public BinaryTraceReader(String filename) throws IOException
+    {
+        this.filename = filename;
+        this.file = new RandomAccessFile(filename, "r");
+        boolean opened = false;
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(BinaryTrace.HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0);
+            header.flip();
+            if (header.remaining() < BinaryTrace.HEADER_SIZE || header.getInt() != BinaryTrace.MAGIC)
+                throw new IOException("Not a binary trace: " + filename);
+            int version = header.getInt();
+            if (version != BinaryTrace.VERSION)
+                throw new IOException("Unsupported binary trace version " + version + ": " + filename);
+            gaps = (header.getInt() & BinaryTrace.FLAG_GAPS) != 0;
+            maxRecordBytes = header.getInt();
+            if (header.getLong() == 0)
+                throw new IOException("Empty trace file: " + filename);
+
+            window = new MappedWindow(channel, BinaryTrace.HEADER_SIZE, channel.size(),
+                    Math.max(WINDOW_SIZE, 2 * maxRecordBytes));
+            opened = true;
+        } finally {
+            if (!opened)
+                file.close();
+        }
+    }
+
+    @Override
+    public synchronized void next(TraceRecord record)
+    {
+        double skippedGap = 0;
+        try {
+            while (true) {
+                if (window.limit - window.pos < maxRecordBytes && !window.atEnd())
+                    window.refill();
+                if (window.pos == window.limit) {
+                    if (!found)
+                        throw new IllegalStateException("No multiget with ids in " + filename);
+                    System.err.println("Rewind " + filename);
+                    window.rewind();
+                    window.refill();
+                }
+                decode(record);
+                //the converter drops records without ids, but files it wrote before doing so may hold some
+                if (record.count > 0)
+                    break;
+                skippedGap += record.gap;
+            }
+            record.gap += skippedGap;
+            found = true;
+            elapsed += record.gap;
+            record.time = elapsed;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + filename, e);
+        }
+    }
+
+    private void decode(TraceRecord record)
+    {
+        byte[] buf = window.buf;
+        int pos = window.pos;
+        record.clear();
+
+        //varints are decoded inline, the window holding at least a whole record
+        int count = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos++];
+            count |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        for (int j = 0; j < count; j++) {
+            int id = 0;
+            shift = 0;
+            do {
+                b = buf[pos++];
+                id |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            record.add(id);
+        }
+
+        if (gaps) {
+            long nanos = 0;
+            shift = 0;
+            do {
+                b = buf[pos++];
+                nanos |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            record.gap = nanos / 1000.0;
+        }
+        window.pos = pos;
+    }
+
+    @Override
+    public String getFilename()
+    {
+        return filename;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Exception: " + e);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package generators;
+
+/**
+ * Returns the same (possibly fractional) value on every call.
+ */
+public class ConstantDoubleGenerator extends DoubleGenerator {
+
+    double constant;
+
+    public ConstantDoubleGenerator(double constant)
+    {
+        this.constant = constant;
+        setLastDouble(constant);
+    }
+
+    /**
+     * Return the next value as a double.
+     */
+    @Override
+    public double nextDouble() {
+        return constant;
+    }
+
+    /**
+     * Return the expected value (mean) of the values this generator will return.
+     */
+    @Override
+    public double mean() {
+        return constant;
+    }
+}
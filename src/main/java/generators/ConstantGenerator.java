@@ -25,6 +25,6 @@ public class ConstantGenerator extends IntegerGenerator {
      */
     @Override
     public double mean() {
-        return 0;
+        return constant;
     }
 }
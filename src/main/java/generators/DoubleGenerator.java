@@ -0,0 +1,56 @@
+package generators;
+
+/**
+ * A generator that is capable of generating doubles as well as strings. Used where truncating to an int would
+ * bias the result, e.g. interarrival times expressed in (fractional) microseconds.
+ */
+public abstract class DoubleGenerator extends Generator
+{
+    double lastdouble;
+
+    /**
+     * Set the last value generated. DoubleGenerator subclasses must use this call
+     * to properly set the last string value, or the lastString() and lastDouble() calls won't work.
+     */
+    protected void setLastDouble(double last)
+    {
+        lastdouble=last;
+    }
+
+    /**
+     * Return the next value as a double. When overriding this method, be sure to call setLastDouble() properly, or the lastString() call won't work.
+     */
+    public abstract double nextDouble();
+
+    /**
+     * Generate the next string in the distribution.
+     */
+    public String nextString()
+    {
+        return ""+nextDouble();
+    }
+
+    /**
+     * Return the previous string generated by the distribution; e.g., returned from the last nextString() call.
+     * Calling lastString() should not advance the distribution or have any side effects. If nextString() has not yet
+     * been called, lastString() should return something reasonable.
+     */
+    @Override
+    public String lastString()
+    {
+        return ""+lastDouble();
+    }
+
+    /**
+     * Return the previous double generated by the distribution.
+     */
+    public double lastDouble()
+    {
+        return lastdouble;
+    }
+
+    /**
+     * Return the expected value (mean) of the values this generator will return.
+     */
+    public abstract double mean();
+}
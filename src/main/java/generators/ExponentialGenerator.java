@@ -0,0 +1,44 @@
+package generators;
+
+import misc.Utils;
+
+/**
+ * Generates exponentially distributed values. Used as interarrival times, this produces a Poisson arrival process.
+ */
+public class ExponentialGenerator extends DoubleGenerator
+{
+    double _mean;
+
+    /**
+     * Creates a generator of exponentially distributed values.
+     *
+     * @param mean the mean of the generated values (e.g. the mean interarrival time, in microseconds)
+     */
+    public ExponentialGenerator(double mean)
+    {
+        _mean = mean;
+    }
+
+    @Override
+    public double nextDouble()
+    {
+        double ret = sample(_mean);
+        setLastDouble(ret);
+        return ret;
+    }
+
+    /**
+     * Draws one exponentially distributed value with the given mean.
+     */
+    static double sample(double mean)
+    {
+        // nextDouble() is in [0,1), so the log argument is never 0
+        return -mean * Math.log(1.0 - Utils.random().nextDouble());
+    }
+
+    @Override
+    public double mean()
+    {
+        return _mean;
+    }
+}
@@ -0,0 +1,63 @@
+package generators;
+
+/**
+ * Generates interarrival times of a two-state Markov-modulated Poisson process (MMPP): arrivals are Poisson, but the
+ * rate alternates between a calm and a burst state, each lasting an exponentially distributed time. This produces
+ * bursty load with the same mean rate as a plain Poisson process.
+ */
+public class MMPPGenerator extends DoubleGenerator
+{
+    double _mean;
+    double _calmInterarrival, _burstInterarrival; // mean interarrival within each state
+    double _calmDuration, _burstDuration; // mean time spent in each state
+    boolean _inBurst;
+    double _stateRemaining; // time left in the current state
+
+    /**
+     * Creates an MMPP interarrival generator. All times are in the same unit (microseconds for the pacer).
+     *
+     * @param meanInterarrival  the overall mean interarrival time
+     * @param burstFactor       how many times higher the arrival rate is during bursts than outside of them
+     * @param burstFraction     the fraction of time spent in bursts, in (0,1)
+     * @param meanBurstDuration the mean duration of a burst
+     */
+    public MMPPGenerator(double meanInterarrival, double burstFactor, double burstFraction, double meanBurstDuration)
+    {
+        _mean = meanInterarrival;
+        // Pick the calm rate so that the time-weighted mean rate equals 1/meanInterarrival
+        _calmInterarrival = meanInterarrival * (burstFraction * burstFactor + 1 - burstFraction);
+        _burstInterarrival = _calmInterarrival / burstFactor;
+        _burstDuration = meanBurstDuration;
+        _calmDuration = meanBurstDuration * (1 - burstFraction) / burstFraction;
+        _inBurst = false;
+        _stateRemaining = ExponentialGenerator.sample(_calmDuration);
+    }
+
+    @Override
+    public double nextDouble()
+    {
+        double ret = 0;
+        while (true)
+        {
+            // Poisson arrivals are memoryless, so a gap cut short by a state change can simply be redrawn
+            double gap = ExponentialGenerator.sample(_inBurst ? _burstInterarrival : _calmInterarrival);
+            if (gap <= _stateRemaining)
+            {
+                _stateRemaining -= gap;
+                ret += gap;
+                break;
+            }
+            ret += _stateRemaining;
+            _inBurst = !_inBurst;
+            _stateRemaining = ExponentialGenerator.sample(_inBurst ? _burstDuration : _calmDuration);
+        }
+        setLastDouble(ret);
+        return ret;
+    }
+
+    @Override
+    public double mean()
+    {
+        return _mean;
+    }
+}
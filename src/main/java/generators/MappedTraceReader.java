@@ -0,0 +1,186 @@
+package generators;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a text trace ("R id ... id gap" lines) from a memory-mapped file, parsing the ids straight from the bytes:
+ * no line or token Strings are created, and the end of the file is handled by rewinding instead of reopening it.
+ * <p/>
+ * Lines without ids are skipped, their gap being added to the next multiget's, so that no empty multiget is ever
+ * returned.
+ */
+public class MappedTraceReader implements TraceReader
+{
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final String filename;
+    private final RandomAccessFile file;
+    private final MappedWindow window;
+    private double elapsed; //recorded time of the last record returned by next(), in microseconds
+    private boolean found; //whether a multiget was read since the reader was created
+
+    public MappedTraceReader(String filename) throws IOException
+    {
+        this.filename = filename;
+        this.file = new RandomAccessFile(filename, "r");
+        boolean opened = false;
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size == 0)
+                throw new IOException("Empty trace file: " + filename);
+            this.window = new MappedWindow(channel, 0, size, WINDOW_SIZE);
+            opened = true;
+        } finally {
+            if (!opened)
+                file.close();
+        }
+    }
+
+    @Override
+    public synchronized void next(TraceRecord record)
+    {
+        read(record, true);
+        elapsed += record.gap;
+        record.time = elapsed;
+    }
+
+    /**
+     * Reads the next multiget of the trace into the given record.
+     *
+     * @param wrap whether to start over at the end of the trace.
+     * @return false if the end of the trace was reached without wrapping.
+     * @throws UnsupportedOperationException if the next line is not a multiget.
+     * @throws IllegalStateException if the trace holds no multiget with ids.
+     */
+    boolean read(TraceRecord record, boolean wrap)
+    {
+        double skippedGap = 0;
+        try {
+            while (true) {
+                if (window.pos == window.limit && window.atEnd()) {
+                    if (!wrap)
+                        return false;
+                    if (!found)
+                        throw new IllegalStateException("No multiget with ids in " + filename);
+                    System.err.println("Rewind " + filename);
+                    window.rewind();
+                    skippedGap = 0; //as in converted traces, which end with the last multiget
+                }
+                int next = parseLine(record);
+                if (next >= 0) {
+                    window.pos = next;
+                    if (record.count == 0) {
+                        skippedGap += record.gap;
+                        continue;
+                    }
+                    record.gap += skippedGap;
+                    found = true;
+                    return true;
+                }
+                window.refill();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + filename, e);
+        }
+    }
+
+    /**
+     * Parses the line at the start of the window into the record.
+     *
+     * @return the window position after the line, or -1 if the window ends before it does.
+     */
+    private int parseLine(TraceRecord record)
+    {
+        byte[] buf = window.buf;
+        int start = window.pos;
+        int limit = window.limit;
+        boolean last = window.atEnd(); //the window holds the end of the file, so a line may end without a newline
+        if (limit - start < 2) {
+            if (!last || limit == start)
+                return -1;
+            throw new UnsupportedOperationException();
+        }
+        if (buf[start] != 'R' || buf[start + 1] != ' ')
+            throw new UnsupportedOperationException();
+
+        record.clear();
+        //tokens are parsed in a single pass: the last one is the gap, so each token is only added as an id once the
+        //next one starts
+        boolean pending = false;
+        boolean inToken = false;
+        long mantissa = 0;
+        long scale = 1;
+        boolean plain = true; //digits only, plus at most one '.'
+        boolean fraction = false;
+        int tokenStart = 0;
+        int tokenEnd = 0;
+        int i = start + 2;
+        for (; i < limit; i++) {
+            byte c = buf[i];
+            if (c == '\n')
+                break;
+            if (c == ' ' || c == '\t' || c == '\r') {
+                inToken = false;
+                continue;
+            }
+            if (!inToken) {
+                if (pending)
+                    record.add(toId(mantissa, plain && !fraction));
+                pending = true;
+                inToken = true;
+                tokenStart = i;
+                mantissa = 0;
+                scale = 1;
+                plain = true;
+                fraction = false;
+            }
+            tokenEnd = i + 1;
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction)
+                    scale *= 10;
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                plain = false;
+            }
+        }
+        if (i == limit && !last)
+            return -1;
+        if (pending) {
+            if (plain && tokenEnd - tokenStart < 18)
+                record.gap = (double) mantissa / scale;
+            else
+                record.gap = Double.parseDouble(new String(buf, tokenStart, tokenEnd - tokenStart,
+                        StandardCharsets.US_ASCII));
+        }
+        return i < limit ? i + 1 : i;
+    }
+
+    private int toId(long value, boolean valid)
+    {
+        if (!valid || value > Integer.MAX_VALUE)
+            throw new NumberFormatException("Bad trace id in " + filename);
+        return (int) value;
+    }
+
+    @Override
+    public String getFilename()
+    {
+        return filename;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Exception: " + e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package generators;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A reused byte array window over a region of a memory-mapped file, for the trace readers.
+ * <p/>
+ * The mapped bytes are bulk-copied into the window before being parsed, since reading a mapped buffer one byte at a
+ * time is several times slower than reading an array. Regions larger than a mapping are read through successive
+ * mappings. Instances are not thread-safe.
+ */
+class MappedWindow
+{
+    private static final int MAX_MAPPING = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private MappedByteBuffer mapping;
+    private long mappingStart;
+
+    byte[] buf;
+    int pos;
+    int limit;
+
+    /**
+     * Creates a window over the bytes [start, end) of a file.
+     */
+    MappedWindow(FileChannel channel, long start, long end, int windowSize) throws IOException
+    {
+        this.channel = channel;
+        this.start = start;
+        this.end = end;
+        this.buf = new byte[windowSize];
+        map(start);
+    }
+
+    private void map(long from) throws IOException
+    {
+        mappingStart = from;
+        mapping = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(end - from, MAX_MAPPING));
+    }
+
+    /**
+     * Returns true if the window holds the end of the region, i.e. refilling would not add any byte.
+     */
+    boolean atEnd()
+    {
+        return !mapping.hasRemaining() && mappingStart + mapping.limit() >= end;
+    }
+
+    /**
+     * Moves the unconsumed bytes to the front of the window and appends as many mapped bytes as fit, growing the
+     * window if it was already full.
+     */
+    void refill() throws IOException
+    {
+        int remaining = limit - pos;
+        if (remaining == buf.length)
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        System.arraycopy(buf, pos, buf, 0, remaining);
+        pos = 0;
+        limit = remaining;
+        while (limit < buf.length && !atEnd()) {
+            if (!mapping.hasRemaining())
+                map(mappingStart + mapping.limit());
+            int length = Math.min(buf.length - limit, mapping.remaining());
+            mapping.get(buf, limit, length);
+            limit += length;
+        }
+    }
+
+    /**
+     * Empties the window and moves back to the start of the region.
+     */
+    void rewind() throws IOException
+    {
+        pos = 0;
+        limit = 0;
+        if (mappingStart == start)
+            mapping.position(0);
+        else
+            map(start);
+    }
+}
@@ -0,0 +1,57 @@
+package generators;
+
+/**
+ * Generates interarrival times of an on/off process: Poisson arrivals during ON periods and none during OFF periods,
+ * with exponentially distributed period lengths. The arrival rate during ON periods is raised so that the overall
+ * mean interarrival time is preserved.
+ */
+public class OnOffGenerator extends DoubleGenerator
+{
+    double _mean;
+    double _onInterarrival; // mean interarrival within ON periods
+    double _onDuration, _offDuration; // mean length of each period
+    double _onRemaining; // time left in the current ON period
+
+    /**
+     * Creates an on/off interarrival generator. All times are in the same unit (microseconds for the pacer).
+     *
+     * @param meanInterarrival the overall mean interarrival time
+     * @param meanOnDuration   the mean length of ON periods
+     * @param meanOffDuration  the mean length of OFF periods
+     */
+    public OnOffGenerator(double meanInterarrival, double meanOnDuration, double meanOffDuration)
+    {
+        _mean = meanInterarrival;
+        _onInterarrival = meanInterarrival * meanOnDuration / (meanOnDuration + meanOffDuration);
+        _onDuration = meanOnDuration;
+        _offDuration = meanOffDuration;
+        _onRemaining = ExponentialGenerator.sample(_onDuration);
+    }
+
+    @Override
+    public double nextDouble()
+    {
+        double ret = 0;
+        while (true)
+        {
+            double gap = ExponentialGenerator.sample(_onInterarrival);
+            if (gap <= _onRemaining)
+            {
+                _onRemaining -= gap;
+                ret += gap;
+                break;
+            }
+            // Skip the rest of the ON period and the whole OFF period
+            ret += _onRemaining + ExponentialGenerator.sample(_offDuration);
+            _onRemaining = ExponentialGenerator.sample(_onDuration);
+        }
+        setLastDouble(ret);
+        return ret;
+    }
+
+    @Override
+    public double mean()
+    {
+        return _mean;
+    }
+}
@@ -0,0 +1,229 @@
+package generators;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads another trace reader ahead of its callers, from a background thread, so that callers never wait on the file
+ * system or on parsing.
+ * <p/>
+ * The producer thread decodes records into the slots of a bounded ring buffer, which any number of callers consume
+ * without a lock: each slot carries a sequence number telling whether it holds the record of a given position, and
+ * callers claim positions with a compare-and-set. A caller swaps its record buffer with the slot's instead of copying
+ * the ids, then hands the slot back to the producer. Callers that find the ring empty park until the producer
+ * publishes a record and wakes them, and the producer parks while the ring is full until a caller frees a slot.
+ * <p/>
+ * The occupancy of the ring is sampled on every read, and reads that find it empty are counted as stalls.
+ */
+public class PrefetchingTraceReader implements TraceReader
+{
+    private static final long PRODUCER_PARK_NANOS = 50000;
+    private static final long CONSUMER_PARK_NANOS = 1000000; //bounds the wait should a wake-up be missed
+
+    private final TraceReader source;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); //next position to claim
+    private volatile long tail; //next position to produce
+    private final ConcurrentLinkedQueue<Thread> waiting = new ConcurrentLinkedQueue<Thread>(); //parked callers
+    private final Thread producer;
+    private volatile boolean producerParked;
+    private volatile RuntimeException failure;
+    private volatile boolean closed;
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong occupancySum = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+    private volatile long producerWaits;
+
+    private static class Slot
+    {
+        final TraceRecord record = new TraceRecord(64);
+        //position + 1 once the record of that position is published, position + capacity once it was consumed
+        volatile long sequence;
+    }
+
+    /**
+     * Creates a reader and starts its producer thread.
+     *
+     * @param source   the reader to read ahead.
+     * @param capacity the number of records read ahead, rounded up to a power of two.
+     */
+    public PrefetchingTraceReader(TraceReader source, int capacity)
+    {
+        this.source = source;
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        this.mask = size - 1;
+        this.producer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                produce();
+            }
+        }, "trace-prefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    private void produce()
+    {
+        long next = 0;
+        long waits = 0;
+        try {
+            while (!closed) {
+                Slot slot = slots[(int) next & mask];
+                if (slot.sequence != next) {
+                    //the ring is full: wait for the caller of the previous lap to hand this slot back
+                    waits++;
+                    producerWaits = waits;
+                    producerParked = true;
+                    if (slot.sequence != next && !closed)
+                        LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+                    producerParked = false;
+                    continue;
+                }
+                source.next(slot.record);
+                slot.sequence = next + 1;
+                tail = ++next;
+                Thread waiter = waiting.poll();
+                if (waiter != null)
+                    LockSupport.unpark(waiter);
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            Thread waiter;
+            while ((waiter = waiting.poll()) != null)
+                LockSupport.unpark(waiter);
+        }
+    }
+
+    @Override
+    public void next(TraceRecord record)
+    {
+        boolean stalled = false;
+        long stallStart = 0;
+        while (true) {
+            long position = head.get();
+            Slot slot = slots[(int) position & mask];
+            long sequence = slot.sequence;
+            if (sequence == position + 1) {
+                if (!head.compareAndSet(position, position + 1))
+                    continue;
+                if (stalled)
+                    stallNanos.addAndGet(System.nanoTime() - stallStart);
+                reads.incrementAndGet();
+                occupancySum.addAndGet(Math.max(1, tail - position));
+                take(slot, record, position);
+                return;
+            }
+            if (sequence > position + 1)
+                continue; //another caller claimed the position meanwhile
+            if (failure != null)
+                throw failure;
+            if (closed)
+                throw new IllegalStateException("Trace reader closed: " + getFilename());
+            if (!stalled) {
+                stalled = true;
+                stallStart = System.nanoTime();
+                stalls.incrementAndGet();
+            }
+            await(position);
+        }
+    }
+
+    private void take(Slot slot, TraceRecord record, long position)
+    {
+        TraceRecord ready = slot.record;
+        int[] ids = record.ids;
+        record.ids = ready.ids;
+        record.count = ready.count;
+        record.gap = ready.gap;
+        record.time = ready.time;
+        ready.ids = ids;
+        slot.sequence = position + slots.length;
+        if (producerParked)
+            LockSupport.unpark(producer);
+    }
+
+    /**
+     * Parks the calling thread until the producer publishes a record, unless it already did.
+     */
+    private void await(long position)
+    {
+        Thread current = Thread.currentThread();
+        waiting.add(current);
+        //checked again once registered, so that a record published meanwhile is not missed
+        if (tail <= position && failure == null && !closed)
+            LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+        waiting.remove(current);
+    }
+
+    /**
+     * Stops the producer thread and closes the source reader.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(producer);
+        try {
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        source.close();
+    }
+
+    public int getCapacity()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Returns the average number of records ready when a record was read.
+     */
+    public double getAverageOccupancy()
+    {
+        long count = reads.get();
+        return count == 0 ? 0 : (double) occupancySum.get() / count;
+    }
+
+    /**
+     * Returns the number of reads that found no record ready.
+     */
+    public long getStalls()
+    {
+        return stalls.get();
+    }
+
+    /**
+     * Returns the total time (in microseconds) reads waited for a record.
+     */
+    public double getStallMicros()
+    {
+        return stallNanos.get() / 1000.0;
+    }
+
+    /**
+     * Returns the number of times the producer found the ring full.
+     */
+    public long getProducerWaits()
+    {
+        return producerWaits;
+    }
+
+    @Override
+    public String getFilename()
+    {
+        return source.getFilename();
+    }
+}
@@ -0,0 +1,23 @@
+package generators;
+
+/**
+ * A source of multigets read from a workload trace, which loops over the trace forever.
+ * Implementations are thread-safe: concurrent callers each get the next record of the shared sequence.
+ */
+public interface TraceReader
+{
+    /**
+     * Reads the next multiget of the trace into the given record, starting over at the end of the trace, and stamps it
+     * with its recorded time (see {@link TraceRecord#time()}).
+     *
+     * @throws UnsupportedOperationException if the next record is not a multiget.
+     */
+    void next(TraceRecord record);
+
+    String getFilename();
+
+    /**
+     * Releases the file (and threads) held by this reader.
+     */
+    void close();
+}
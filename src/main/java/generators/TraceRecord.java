@@ -0,0 +1,64 @@
+package generators;
+
+import java.util.Arrays;
+
+/**
+ * A multiget read from a workload trace: the trace ids of its keys, in trace order, the gap recorded before it and its
+ * recorded time, i.e. the sum of the gaps read so far. Instances are filled in place by a {@link TraceReader} and meant to be reused.
+ */
+public class TraceRecord
+{
+    int[] ids;
+    int count;
+    double gap;
+    double time;
+
+    public TraceRecord(int initialCapacity)
+    {
+        ids = new int[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * Returns the buffer holding the ids; only the first {@link #count()} are valid.
+     */
+    public int[] ids()
+    {
+        return ids;
+    }
+
+    public int count()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the gap (in microseconds) recorded in the trace before this multiget.
+     */
+    public double gap()
+    {
+        return gap;
+    }
+
+    /**
+     * Returns the recorded time (in microseconds) of this multiget since the reader it comes from started: the sum of
+     * the gaps of all the records it returned so far, this one included. The reader stamps it under the same lock as
+     * it reads the record, so records read by concurrent callers get consistent times.
+     */
+    public double time()
+    {
+        return time;
+    }
+
+    void clear()
+    {
+        count = 0;
+        gap = 0;
+    }
+
+    void add(int id)
+    {
+        if (count == ids.length)
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        ids[count++] = id;
+    }
+}
@@ -308,6 +308,15 @@ public class ZipfianGenerator extends IntegerGenerator
         return nextLong(items);
     }
 
+    /**
+     * Return the zeta constant in use, so that other generators over the same item count can be created with the
+     * precomputed value instead of recomputing it.
+     */
+    public double getZetan()
+    {
+        return zetan;
+    }
+
     public static void main(String[] args)
     {
         new ZipfianGenerator(ScrambledZipfianGenerator.ITEM_COUNT);
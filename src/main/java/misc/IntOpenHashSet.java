@@ -0,0 +1,83 @@
+package misc;
+
+import java.util.Arrays;
+
+/**
+ * Set of non-negative ints with open addressing and linear probing, meant to be cleared and reused: clearing only
+ * resets the slots that were used, so a set sized for the largest batch costs nothing per operation.
+ * Instances are not thread-safe.
+ */
+public class IntOpenHashSet
+{
+    private static final int EMPTY = -1;
+
+    private int[] slots;
+    private int[] used; //indexes of the occupied slots, in insertion order
+    private int size;
+    private int mask;
+
+    public IntOpenHashSet(int expectedSize)
+    {
+        allocate(expectedSize);
+    }
+
+    private void allocate(int expectedSize)
+    {
+        //keep the load factor at or below 0.5
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        used = new int[capacity / 2];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @return true if it was not in the set yet.
+     */
+    public boolean add(int value)
+    {
+        if(size == used.length)
+            grow();
+        int i = mix(value) & mask;
+        while(slots[i] != EMPTY)
+        {
+            if(slots[i] == value)
+                return false;
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        used[size++] = i;
+        return true;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        for(int i=0; i<size; i++)
+            slots[used[i]] = EMPTY;
+        size = 0;
+    }
+
+    private void grow()
+    {
+        int[] oldSlots = slots;
+        int[] oldUsed = used;
+        int oldSize = size;
+        allocate(oldSize * 2);
+        for(int i=0; i<oldSize; i++)
+            add(oldSlots[oldUsed[i]]);
+    }
+
+    private static int mix(int x)
+    {
+        x *= 0x9e3779b9;
+        return x ^ (x >>> 16);
+    }
+}
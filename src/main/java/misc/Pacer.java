@@ -0,0 +1,148 @@
+package misc;
+
+import generators.DoubleGenerator;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop pacing engine.
+ * <p>
+ * Every operation gets an absolute intended send time, computed as the run's start time plus the sum of all previous
+ * interarrival gaps. Waiting is done against that deadline rather than for a relative delay, so time lost to GC
+ * pauses, slow statement construction or scheduler hiccups is caught up on (operations are released back-to-back
+ * until the schedule is met again) instead of permanently shifting the schedule and lowering the offered load.
+ * </p>
+ * Instances are not thread-safe; each sending thread should own its own pacer.
+ */
+public class Pacer
+{
+    /**
+     * Below this remaining time we busy-spin instead of parking: parkNanos() typically overshoots by tens of
+     * microseconds, which would make sub-microsecond deadlines impossible.
+     */
+    private static final long SPIN_THRESHOLD_NANOS = 100000;
+
+    /**
+     * Sends released later than this after their intended time are counted as late.
+     */
+    private static final long LATE_TOLERANCE_NANOS = 10000;
+
+    private final DoubleGenerator interarrivalGenerator; //interarrival times in microseconds
+    private final RateProfile rateProfile; //null to always offer the full rate
+    private long startNanos;
+    private double scheduleOffsetNanos; //kept as a double so fractional interarrivals do not get truncated
+    private long lateCount;
+    private long maxLagNanos;
+
+    public Pacer(DoubleGenerator interarrivalGenerator)
+    {
+        this(interarrivalGenerator, null);
+    }
+
+    /**
+     * Creates a pacer whose rate is scaled over time by the given profile; interarrivals are stretched by the inverse
+     * of the profile's rate fraction at the current point of the schedule.
+     */
+    public Pacer(DoubleGenerator interarrivalGenerator, RateProfile rateProfile)
+    {
+        this.interarrivalGenerator = interarrivalGenerator;
+        this.rateProfile = rateProfile;
+    }
+
+    /**
+     * Starts the schedule now; the first operation is due immediately.
+     */
+    public void start()
+    {
+        start(System.nanoTime());
+    }
+
+    /**
+     * Starts the schedule at the given System.nanoTime() value.
+     */
+    public void start(long nanos)
+    {
+        this.startNanos = nanos;
+        this.scheduleOffsetNanos = 0;
+        this.lateCount = 0;
+        this.maxLagNanos = 0;
+    }
+
+    /**
+     * Returns the intended send time of the next operation and advances the schedule, without waiting.
+     */
+    public long nextIntendedStart()
+    {
+        long intended = startNanos + (long) scheduleOffsetNanos;
+        double gapNanos = interarrivalGenerator.nextDouble() * 1000.0;
+        if (rateProfile != null)
+            gapNanos /= rateProfile.rateFractionAt((long) scheduleOffsetNanos);
+        scheduleOffsetNanos += gapNanos;
+        return intended;
+    }
+
+    /**
+     * Blocks until the intended send time of the next operation and returns it (as a System.nanoTime() value).
+     * If the schedule is behind, returns immediately so the sender can catch up.
+     */
+    public long acquire()
+    {
+        return awaitIntendedStart(nextIntendedStart());
+    }
+
+    /**
+     * Blocks until the given intended send time and returns it, accounting for late sends like acquire() does. Used
+     * when the schedule is kept outside of this pacer, e.g. by a ReplayClock shared between senders.
+     */
+    public long awaitIntendedStart(long intended)
+    {
+        long lag = System.nanoTime() - intended;
+        if (lag < 0)
+        {
+            awaitDeadline(intended);
+        }
+        else
+        {
+            if (lag > LATE_TOLERANCE_NANOS)
+                lateCount++;
+            if (lag > maxLagNanos)
+                maxLagNanos = lag;
+        }
+        return intended;
+    }
+
+    /**
+     * Waits until System.nanoTime() reaches the given deadline, parking for the bulk of the wait and spinning for the
+     * remainder.
+     */
+    public static void awaitDeadline(long deadlineNanos)
+    {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0)
+        {
+            if (remaining > SPIN_THRESHOLD_NANOS)
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+        }
+    }
+
+    public long getStartNanos()
+    {
+        return startNanos;
+    }
+
+    /**
+     * Returns the number of operations released more than LATE_TOLERANCE_NANOS after their intended send time.
+     */
+    public long getLateCount()
+    {
+        return lateCount;
+    }
+
+    /**
+     * Returns the largest observed gap between an operation's intended and actual send time.
+     */
+    public long getMaxLagNanos()
+    {
+        return maxLagNanos;
+    }
+}
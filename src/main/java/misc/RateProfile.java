@@ -0,0 +1,15 @@
+package misc;
+
+/**
+ * Scales the offered rate of a Pacer over time, e.g. to ramp load up before a measurement window.
+ */
+public interface RateProfile
+{
+    /**
+     * Returns the fraction of the target rate to offer at the given time.
+     *
+     * @param offsetNanos time elapsed since the start of the schedule, in nanoseconds.
+     * @return the rate fraction, in (0,1].
+     */
+    double rateFractionAt(long offsetNanos);
+}
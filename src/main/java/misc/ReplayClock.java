@@ -0,0 +1,39 @@
+package misc;
+
+/**
+ * Schedule for replaying a recorded trace: each operation is due at the run's start time plus its recorded time (the
+ * sum of all recorded gaps up to it), compressed by a speed-up factor. The clock is shared by all sending threads, so
+ * the aggregate schedule follows the trace's burst structure regardless of how many threads replay it. Recorded times
+ * are stamped by the trace reader as records are read, so the schedule does not depend on the order in which
+ * threads get to the clock.
+ */
+public class ReplayClock
+{
+    private final long startNanos;
+    private final double speedup;
+
+    /**
+     * @param startNanos the System.nanoTime() value the replay starts at.
+     * @param speedup    time-compression factor, e.g. 10 replays the trace ten times faster than recorded.
+     */
+    public ReplayClock(long startNanos, double speedup)
+    {
+        this.startNanos = startNanos;
+        this.speedup = speedup;
+    }
+
+    /**
+     * Returns the intended send time of an operation.
+     *
+     * @param recordedMicros the recorded time of the operation since the start of the trace, in microseconds.
+     */
+    public long intendedStart(double recordedMicros)
+    {
+        return startNanos + (long) (recordedMicros * 1000.0 / speedup);
+    }
+
+    public double getSpeedup()
+    {
+        return speedup;
+    }
+}
@@ -0,0 +1,364 @@
+package misc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache with W-TinyLFU eviction (Einziger et al., "TinyLFU: A Highly Efficient Cache Admission Policy").
+ * <p>
+ * New entries go to a small LRU admission window (1% of the capacity). Entries leaving the window compete with the
+ * least recently used entry of the main segmented LRU (probation and protected segments, the latter 80% of the main
+ * space) to stay in the cache: whichever of the two has the lowest estimated access frequency is evicted. Frequencies
+ * are estimated with a count-min sketch of 4-bit counters, halved periodically so that old popularity fades.
+ * </p>
+ * The capacity is a total weight: use a weigher returning 1 to bound the number of entries, or the entry size to bound
+ * the bytes held. Entries may also expire after a fixed time since they were written. All methods are synchronized.
+ */
+public class WTinyLfuCache<K, V>
+{
+    public interface Weigher<K, V>
+    {
+        int weigh(K key, V value);
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node<K, V>
+    {
+        final K key;
+        V value;
+        int weight;
+        long expiresNanos;
+        int segment;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key)
+        {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Doubly-linked list in access order, least recently used first.
+     */
+    private static final class AccessOrder<K, V>
+    {
+        final Node<K, V> head = new Node<K, V>(null);
+        long weight;
+
+        AccessOrder()
+        {
+            head.prev = head;
+            head.next = head;
+        }
+
+        Node<K, V> first()
+        {
+            return head.next == head ? null : head.next;
+        }
+
+        Node<K, V> last()
+        {
+            return head.prev == head ? null : head.prev;
+        }
+
+        void addLast(Node<K, V> node)
+        {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+            weight += node.weight;
+        }
+
+        void remove(Node<K, V> node)
+        {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+    }
+
+    private final Map<K, Node<K, V>> data = new HashMap<K, Node<K, V>>();
+    private final AccessOrder<K, V> window = new AccessOrder<K, V>();
+    private final AccessOrder<K, V> probation = new AccessOrder<K, V>();
+    private final AccessOrder<K, V> protectedSegment = new AccessOrder<K, V>();
+    private final FrequencySketch sketch;
+    private final Weigher<K, V> weigher;
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final long ttlNanos;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    /**
+     * @param maximumWeight   the capacity, in units of the weigher.
+     * @param expectedEntries the number of entries the cache is expected to hold, used to size the frequency sketch.
+     * @param ttlNanos        the time after which entries expire, or 0 for no expiration.
+     * @param weigher         the weight of each entry.
+     */
+    public WTinyLfuCache(long maximumWeight, int expectedEntries, long ttlNanos, Weigher<K, V> weigher)
+    {
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * 0.8);
+        this.ttlNanos = ttlNanos;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * Returns the value cached for the key, or null if it is not cached (or expired).
+     */
+    public synchronized V get(K key)
+    {
+        sketch.increment(key);
+        Node<K, V> node = data.get(key);
+        if(node == null)
+        {
+            misses++;
+            return null;
+        }
+        if(ttlNanos > 0 && System.nanoTime() - node.expiresNanos >= 0)
+        {
+            remove(node);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * Caches a value, possibly evicting other entries. Null values, which {@link #get} could not tell from a miss, and
+     * values heavier than the whole cache are not cached: the key's previous value, if any, is removed instead so that
+     * it is not served stale. The weigher is never given a null value.
+     */
+    public synchronized void put(K key, V value)
+    {
+        Node<K, V> node = data.get(key);
+        int weight = value == null ? 0 : weigher.weigh(key, value);
+        if(value == null || weight > maximumWeight)
+        {
+            if(node != null)
+                remove(node);
+            return;
+        }
+        if(node != null)
+        {
+            segment(node).remove(node);
+            node.value = value;
+            node.weight = weight;
+            segment(node).addLast(node);
+            onAccess(node);
+        }
+        else
+        {
+            node = new Node<K, V>(key);
+            node.value = value;
+            node.weight = weight;
+            node.segment = WINDOW;
+            data.put(key, node);
+            window.addLast(node);
+        }
+        if(ttlNanos > 0)
+            node.expiresNanos = System.nanoTime() + ttlNanos;
+        evict();
+    }
+
+    private void onAccess(Node<K, V> node)
+    {
+        AccessOrder<K, V> segment = segment(node);
+        segment.remove(node);
+        if(node.segment == PROBATION)
+        {
+            node.segment = PROTECTED;
+            protectedSegment.addLast(node);
+            //Demote the least recently used protected entries back to probation
+            while(protectedSegment.weight > protectedMaximum)
+            {
+                Node<K, V> demoted = protectedSegment.first();
+                protectedSegment.remove(demoted);
+                demoted.segment = PROBATION;
+                probation.addLast(demoted);
+            }
+        }
+        else
+        {
+            segment.addLast(node);
+        }
+    }
+
+    private void evict()
+    {
+        //Entries leaving the admission window become candidates at the tail of the probation segment
+        while(window.weight > windowMaximum)
+        {
+            Node<K, V> candidate = window.first();
+            window.remove(candidate);
+            candidate.segment = PROBATION;
+            probation.addLast(candidate);
+        }
+        while(window.weight + probation.weight + protectedSegment.weight > maximumWeight)
+        {
+            Node<K, V> victim = probation.first();
+            Node<K, V> candidate = probation.last();
+            if(victim == null)
+            {
+                victim = protectedSegment.first() != null ? protectedSegment.first() : window.first();
+            }
+            else if(candidate != victim && sketch.frequency(candidate.key) <= sketch.frequency(victim.key))
+            {
+                victim = candidate;
+            }
+            remove(victim);
+            evictions++;
+        }
+    }
+
+    private void remove(Node<K, V> node)
+    {
+        segment(node).remove(node);
+        data.remove(node.key);
+    }
+
+    private AccessOrder<K, V> segment(Node<K, V> node)
+    {
+        switch(node.segment)
+        {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedSegment;
+        }
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries evicted to make room for others (expired entries not included).
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    public synchronized long getExpirations()
+    {
+        return expirations;
+    }
+
+    public synchronized double getHitRate()
+    {
+        return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+    }
+
+    public synchronized int size()
+    {
+        return data.size();
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, 16 per long, with four hash functions. When the number of increments
+     * reaches ten times the width of the sketch, all counters are halved.
+     */
+    private static final class FrequencySketch
+    {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+                0xcbf29ce484222325L};
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries)
+        {
+            int width = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 26)) - 1) << 1;
+            table = new long[width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        int frequency(Object key)
+        {
+            int hash = spread(key.hashCode());
+            int frequency = 15;
+            for(int i=0; i<4; i++)
+            {
+                long slot = slot(hash, i);
+                frequency = Math.min(frequency, (int) ((table[index(slot)] >>> offset(slot)) & 0xfL));
+            }
+            return frequency;
+        }
+
+        void increment(Object key)
+        {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for(int i=0; i<4; i++)
+            {
+                long slot = slot(hash, i);
+                int index = index(slot);
+                int offset = offset(slot);
+                if(((table[index] >>> offset) & 0xfL) != 0xfL)
+                {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if(added && ++additions == sampleSize)
+                reset();
+        }
+
+        private void reset()
+        {
+            for(int i=0; i<table.length; i++)
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            additions /= 2;
+        }
+
+        private static long slot(int hash, int i)
+        {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return h ^ (h >>> 32);
+        }
+
+        private int index(long slot)
+        {
+            return (int) (slot >>> 4) & mask;
+        }
+
+        private static int offset(long slot)
+        {
+            return (int) (slot & 15) << 2;
+        }
+
+        private static int spread(int x)
+        {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}